@@ -0,0 +1,80 @@
+package phylogenetictree;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Pairwise global alignment of two related sequences (one family, 10% mutations) across lengths and alphabets.
+ *
+ * kernel: "full" fills the whole table with predecessors ({@link phylogenetictree.SmithWaterman#align}), "score" computes only the score (vector kernel when available), "scalar" the same with the vector kernel switched off, "banded" the banded alignment starting with a band of 32, "reused" the score with one aligner and {@link phylogenetictree.AlignmentWorkspace} kept across invocations, as the clustering does per thread (no allocation per pair).
+ * Every parameter combination runs in its own JVM, so the kernel switch (a system property read once) is set before the aligner is loaded.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector", "-Xmx2g"})
+public class AlignBenchmark {
+
+    @Param({"100", "1000", "5000"})
+    public int length;
+
+    @Param({"dna", "protein"})
+    public String alphabet;
+
+    @Param({"full", "score", "scalar", "banded", "reused"})
+    public String kernel;
+
+    private ScoringMatrix matrix;
+    private byte[] first, second;
+    private SmithWaterman reused;
+
+    @Setup
+    public void setup(){
+
+        if(kernel.equals("scalar"))
+            System.setProperty("phylogenetictree.vector", "false");
+
+        String letters = SyntheticData.alphabet(alphabet);
+        matrix = new ScoringMatrix(SyntheticData.weights(1, letters));
+        List<String> pair = SyntheticData.sequences(2, letters, 2, length, 1, 0.1);
+        first = matrix.encode(pair.get(0));
+        second = matrix.encode(pair.get(1));
+        reused = new SmithWaterman(matrix, new AlignmentWorkspace());
+    }
+
+    @Benchmark
+    public double align(){
+
+        if(kernel.equals("reused")){
+
+            reused.setPair(first, second);
+            reused.alignScore();
+            return reused.getScore();
+        }
+        SmithWaterman aligner = new SmithWaterman(first, second, matrix);
+        switch(kernel){
+            case "full":
+                aligner.align();
+                break;
+            case "banded":
+                aligner.alignBanded(32, Integer.MAX_VALUE);
+                break;
+            default:
+                aligner.alignScore();
+        }
+        return aligner.getScore();
+    }
+}
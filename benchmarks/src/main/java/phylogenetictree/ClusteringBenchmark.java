@@ -0,0 +1,129 @@
+package phylogenetictree;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The two phases of the clustering, measured separately: all pairwise alignments ({@link phylogenetictree.HierarchicalClustering#initalizeClustering}) and the merge loop ({@link phylogenetictree.ClusteringEngine}, for single linkage also {@link phylogenetictree.SingleLinkageTree}).
+ * One invocation is one whole phase, so the time per operation is the time of the phase.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector", "-Xmx2g"})
+public class ClusteringBenchmark {
+
+    /**
+     * n sequences of length 300 in 4 families (10% mutations), DNA.
+     */
+    @State(Scope.Benchmark)
+    public static class Sequences {
+
+        @Param({"50", "200", "800"})
+        public int n;
+
+        /**
+         * Threads of the alignment phase, 0 for the number of processors.
+         */
+        @Param({"0"})
+        public int threads;
+
+        HashMap<Integer, String> sequences;
+        ScoringMatrix matrix;
+
+        @Setup
+        public void setup(){
+
+            matrix = new ScoringMatrix(SyntheticData.weights(1, SyntheticData.DNA));
+            List<String> generated = SyntheticData.sequences(3, SyntheticData.DNA, n, 300, 4, 0.1);
+            sequences = new HashMap<>();
+            for(int i = 0; i < n; i++){
+                sequences.put(i + 1, generated.get(i));
+            }
+        }
+    }
+
+    /**
+     * A score matrix of n nodes in 16 families, copied afresh before every invocation because the merges modify it.
+     */
+    @State(Scope.Benchmark)
+    public static class Scores {
+
+        @Param({"500", "2000", "5000"})
+        public int n;
+
+        @Param({"WEIGHTED", "UPGMA", "SINGLE"})
+        public Linkage linkage;
+
+        DistanceMatrix original, scores;
+        int[] nodes;
+
+        @Setup(Level.Trial)
+        public void generate(){
+
+            original = SyntheticData.scores(4, n, 16);
+            nodes = new int[n];
+            for(int i = 0; i < n; i++){
+                nodes[i] = i + 1;
+            }
+        }
+
+        @Setup(Level.Invocation)
+        public void copy(){
+
+            scores = new ArrayDistanceMatrix(n);
+            for(int i = 0; i < n; i++){
+                for(int j = 0; j < i; j++){
+                    scores.set(i, j, original.get(i, j));
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public HierarchicalClustering initalizeClustering(Sequences state){
+
+        HierarchicalClustering hc = new HierarchicalClustering(state.sequences, state.matrix);
+        if(state.threads > 0)
+            hc.setParallelism(state.threads);
+        hc.initalizeClustering();
+        return hc;
+    }
+
+    @Benchmark
+    public HashMap<Integer, Pair<Integer, Integer>> merge(Scores state){
+
+        HashMap<Integer, Pair<Integer, Integer>> tree = new HashMap<>();
+        for(int node : state.nodes){
+            tree.put(node, new Pair(-1, -1));
+        }
+        new ClusteringEngine(state.scores, state.nodes, null, state.linkage).run(tree, new HashMap<>(), 2);
+        return tree;
+    }
+
+    @Benchmark
+    public HashMap<Integer, Pair<Integer, Integer>> spanningTree(Scores state){
+
+        HashMap<Integer, Pair<Integer, Integer>> tree = new HashMap<>();
+        for(int node : state.nodes){
+            tree.put(node, new Pair(-1, -1));
+        }
+        new SingleLinkageTree(state.scores, state.nodes).run(tree, new HashMap<>(), 2, ForkJoinPool.commonPool());  // single linkage whatever the parameter
+        return tree;
+    }
+}
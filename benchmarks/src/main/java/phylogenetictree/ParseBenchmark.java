@@ -0,0 +1,77 @@
+package phylogenetictree;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading of the input files: {@link phylogenetictree.Interface#getSequences} on a generated FASTA file and {@link phylogenetictree.Interface#getMatrix} on a generated matrix of the same alphabet.
+ * The files are written to a temporary directory once per trial, so after the first iteration they are read from the page cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g"})
+public class ParseBenchmark {
+
+    /**
+     * Number of sequences of length 1000 in the FASTA file.
+     */
+    @Param({"1000", "20000"})
+    public int n;
+
+    @Param({"dna", "protein"})
+    public String alphabet;
+
+    private Path directory, fasta, matrix;
+
+    @Setup
+    public void setup() throws IOException{
+
+        String letters = SyntheticData.alphabet(alphabet);
+        directory = Files.createTempDirectory("phylogenetictree-bench");
+        fasta = directory.resolve("sequences.fasta");
+        matrix = directory.resolve("matrix.txt");
+        SyntheticData.writeFasta(fasta, SyntheticData.sequences(5, letters, n, 1000, 16, 0.1));
+        SyntheticData.writeMatrix(matrix, SyntheticData.weights(1, letters), letters);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException{
+
+        Files.deleteIfExists(fasta);
+        Files.deleteIfExists(matrix);
+        Files.deleteIfExists(directory);
+    }
+
+    @Benchmark
+    public SequenceArena getSequences() throws IOException{
+
+        Interface in = new Interface();
+        in.getSequences(fasta.toString());
+        return in.arena;
+    }
+
+    @Benchmark
+    public ScoringMatrix getMatrix() throws IOException{
+
+        Interface in = new Interface();
+        in.getMatrix(matrix.toString());
+        return in.matrix;
+    }
+}
@@ -0,0 +1,194 @@
+package phylogenetictree;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Deterministic generators of benchmark inputs. The same seed always gives the same sequences and weights, so results of different runs (and machines) are comparable.
+ *
+ * Two kinds of sequence sets are generated: independent random sequences (the worst case for the banded alignment) and families of sequences mutated from a common ancestor (the realistic case: similar sequences, a tree with structure).
+ */
+class SyntheticData {
+
+    static final String DNA = "ACGT";
+    static final String PROTEIN = "ACDEFGHIKLMNPQRSTVWY";
+
+    /**
+     * @param name "dna" or "protein"
+     * @return letters of the alphabet (without the gap symbol)
+     */
+
+    static String alphabet(String name){
+
+        switch(name){
+            case "dna":
+                return DNA;
+            case "protein":
+                return PROTEIN;
+            default:
+                throw new IllegalArgumentException("Unknown alphabet " + name + ".");
+        }
+    }
+
+    /**
+     * @return a sequence of independent, uniformly chosen letters
+     */
+
+    static String random(Random random, String alphabet, int length){
+
+        StringBuilder sequence = new StringBuilder(length);
+        for(int i = 0; i < length; i++){
+            sequence.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return sequence.toString();
+    }
+
+    /**
+     * Copies the ancestor with point mutations: every letter is substituted with the probability rate, deleted with the probability rate / 4 and followed by an insertion with the probability rate / 4.
+     * @return the mutated sequence
+     */
+
+    static String mutate(Random random, String ancestor, String alphabet, double rate){
+
+        StringBuilder sequence = new StringBuilder(ancestor.length() + 16);
+        for(int i = 0; i < ancestor.length(); i++){
+
+            double r = random.nextDouble();
+            if(r < rate / 4)
+                continue;   // deletion
+            sequence.append(r < rate ? alphabet.charAt(random.nextInt(alphabet.length())) : ancestor.charAt(i));
+            if(random.nextDouble() < rate / 4)
+                sequence.append(alphabet.charAt(random.nextInt(alphabet.length())));   // insertion
+        }
+        return sequence.toString();
+    }
+
+    /**
+     * Generates count sequences in the given number of families. Every family has a random ancestor; its members are mutated copies of it. Sequence i belongs to the family i % families.
+     * @param families number of families, 0 for independent random sequences
+     * @param rate mutation rate of the members
+     * @return the sequences
+     */
+
+    static List<String> sequences(long seed, String alphabet, int count, int length, int families, double rate){
+
+        Random random = new Random(seed);
+        List<String> sequences = new ArrayList<>(count);
+        if(families == 0){
+
+            for(int i = 0; i < count; i++){
+                sequences.add(random(random, alphabet, length));
+            }
+            return sequences;
+        }
+
+        String[] ancestors = new String[families];
+        for(int f = 0; f < families; f++){
+            ancestors[f] = random(random, alphabet, length);
+        }
+        for(int i = 0; i < count; i++){
+            sequences.add(mutate(random, ancestors[i % families], alphabet, rate));
+        }
+        return sequences;
+    }
+
+    /**
+     * Generates a symmetric integer weights matrix in the form of {@link phylogenetictree.Interface#weights}: matches score 4 to 8, mismatches -4 to 0, blanks -6.
+     * @param alphabet letters of the alphabet (without the gap symbol)
+     * @return the weights
+     */
+
+    static HashMap<Character, HashMap<Character, Double>> weights(long seed, String alphabet){
+
+        Random random = new Random(seed);
+        String letters = alphabet + ScoringMatrix.GAP;
+        HashMap<Character, HashMap<Character, Double>> weights = new HashMap<>();
+        for(int a = 0; a < letters.length(); a++){
+            weights.put(letters.charAt(a), new HashMap<>());
+        }
+
+        for(int a = 0; a < letters.length(); a++){
+
+            for(int b = 0; b <= a; b++){
+
+                double w;
+                if(letters.charAt(a) == ScoringMatrix.GAP && letters.charAt(b) == ScoringMatrix.GAP)
+                    w = 0;
+                else if(letters.charAt(a) == ScoringMatrix.GAP || letters.charAt(b) == ScoringMatrix.GAP)
+                    w = -6;
+                else if(a == b)
+                    w = 4 + random.nextInt(5);
+                else
+                    w = -4 + random.nextInt(5);
+                weights.get(letters.charAt(a)).put(letters.charAt(b), w);
+                weights.get(letters.charAt(b)).put(letters.charAt(a), w);
+            }
+        }
+        return weights;
+    }
+
+    /**
+     * Writes the sequences as a FASTA file with descriptions "seq1", "seq2", ... and lines of 60 letters.
+     */
+
+    static void writeFasta(Path file, List<String> sequences) throws IOException{
+
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file, StandardCharsets.US_ASCII))){
+
+            for(int i = 0; i < sequences.size(); i++){
+
+                out.print(">seq" + (i + 1) + "\n");
+                String sequence = sequences.get(i);
+                for(int p = 0; p < sequence.length(); p += 60){
+                    out.print(sequence.substring(p, Math.min(p + 60, sequence.length())) + "\n");
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the weights in the matrix.txt format read by {@link phylogenetictree.Interface#getMatrix}.
+     */
+
+    static void writeMatrix(Path file, HashMap<Character, HashMap<Character, Double>> weights, String alphabet) throws IOException{
+
+        String letters = alphabet + ScoringMatrix.GAP;
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file, StandardCharsets.US_ASCII))){
+
+            out.print("# synthetic benchmark matrix\n");
+            out.print(String.join(" ", letters.split("")) + "\n");
+            for(int a = 0; a < letters.length(); a++){
+
+                out.print(letters.charAt(a));
+                for(int b = 0; b < letters.length(); b++){
+                    out.print(" " + weights.get(letters.charAt(b)).get(letters.charAt(a)).intValue());
+                }
+                out.print("\n");
+            }
+        }
+    }
+
+    /**
+     * Fills a score matrix the way the alignment of family data would: pairs inside a family (i % families) score high, pairs across families low, with deterministic noise so that there are few ties.
+     * @return the matrix
+     */
+
+    static DistanceMatrix scores(long seed, int size, int families){
+
+        Random random = new Random(seed);
+        DistanceMatrix scores = new ArrayDistanceMatrix(size);
+        for(int i = 0; i < size; i++){
+            for(int j = 0; j < i; j++){
+                scores.set(i, j, (i % families == j % families ? 1000 : 0) + random.nextInt(1000) + random.nextDouble());
+            }
+        }
+        return scores;
+    }
+}
@@ -0,0 +1,68 @@
+package phylogenetictree;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * The reusable aligner of every thread for one weights matrix, so that the alignment of a pair allocates nothing once the buffers of the workspace of its thread are large enough.
+ *
+ * A clustering with its own threads has its own aligners. A service or a batch keeps one instance next to its shared pool and hands both to every job ({@link phylogenetictree.HierarchicalClustering#setPool}), so the warm workspaces of the pool threads are reused by all jobs and every thread holds one workspace, not one per job it has worked for.
+ */
+public class Aligners {
+
+    private final ScoringMatrix matrix;
+
+    /**
+     * Workspaces of all aligners created so far, for their high-water marks.
+     */
+    private final ConcurrentLinkedQueue<AlignmentWorkspace> workspaces = new ConcurrentLinkedQueue<>();
+
+    private final ThreadLocal<SmithWaterman> aligners;
+
+    /**
+     * @param _matrix the compiled weights matrix of all alignments
+     */
+
+    public Aligners(ScoringMatrix _matrix){
+
+        matrix = _matrix;
+        aligners = ThreadLocal.withInitial(() -> {
+
+            AlignmentWorkspace workspace = new AlignmentWorkspace();
+            workspaces.add(workspace);
+            return new SmithWaterman(matrix, workspace);
+        });
+    }
+
+    /**
+     * @return the aligner of the current thread
+     */
+
+    SmithWaterman get(){
+
+        return aligners.get();
+    }
+
+    ScoringMatrix getMatrix(){
+
+        return matrix;
+    }
+
+    /**
+     * @return a line with the high-water marks of the alignment workspaces
+     */
+
+    public String getStatistics(){
+
+        long bytes = 0, largest = 0;
+        int longestRow = 0, growths = 0, count = 0;
+        for(AlignmentWorkspace workspace : workspaces){
+
+            count++;
+            bytes += workspace.getBytes();
+            largest = Math.max(largest, workspace.getBytes());
+            longestRow = Math.max(longestRow, workspace.getLongestRow());
+            growths += workspace.getGrowths();
+        }
+        return String.format("alignment workspaces: %d, buffers: %d kB in all, %d kB the largest, longest row: %d, buffer allocations: %d", count, bytes >> 10, largest >> 10, longestRow, growths);
+    }
+}
@@ -0,0 +1,161 @@
+package phylogenetictree;
+
+import java.util.Arrays;
+
+/**
+ * Reusable buffers of the score-only alignments ({@link phylogenetictree.SmithWaterman#alignScore}, {@link phylogenetictree.SmithWaterman#alignBanded} and {@link phylogenetictree.VectorKernel}), so that one thread aligns many pairs one after another without allocating anything per pair.
+ *
+ * A buffer grows when a pair needs more than it holds, by at least half of its size, so a run of ever longer pairs reallocates only a few times; it is never shrunk. The contents of a buffer are undefined when it is handed out.
+ * The workspace records its high-water marks: the bytes held by all buffers and the longest row they grew for.
+ * A workspace is not thread-safe, every thread needs its own (see {@link phylogenetictree.Aligners}, which keep one per thread).
+ */
+public class AlignmentWorkspace {
+
+    /**
+     * Rolling rows of the scalar kernels: two rows of doubles; of the vector kernel: two rows and the prefix sums of the gap weights, as ints or shorts.
+     */
+    private final double[][] doubles = new double[2][0];
+    private final int[][] ints = new int[3][0];
+    private final short[][] shorts = new short[3][0];
+
+    /**
+     * Query profiles of the vector kernel, one row per letter.
+     */
+    private int[][] intProfile = new int[0][];
+    private short[][] shortProfile = new short[0][];
+
+    /**
+     * Flags per letter, e. g. the letters occurring in a string.
+     */
+    private final boolean[][] flags = new boolean[2][0];
+
+    private long bytes = 0;
+    private int longestRow = 0;    // the longest row a buffer grew for
+    private int growths = 0;
+
+    /**
+     * @param k number of the row
+     * @param length the least length
+     * @return row k of doubles
+     */
+
+    double[] doubles(int k, int length){
+
+        if(doubles[k].length < length)
+            doubles[k] = new double[grow(doubles[k].length, length, Double.BYTES)];
+        return doubles[k];
+    }
+
+    /**
+     * @param k number of the row
+     * @param length the least length
+     * @return row k of ints
+     */
+
+    int[] ints(int k, int length){
+
+        if(ints[k].length < length)
+            ints[k] = new int[grow(ints[k].length, length, Integer.BYTES)];
+        return ints[k];
+    }
+
+    /**
+     * @param k number of the row
+     * @param length the least length
+     * @return row k of shorts
+     */
+
+    short[] shorts(int k, int length){
+
+        if(shorts[k].length < length)
+            shorts[k] = new short[grow(shorts[k].length, length, Short.BYTES)];
+        return shorts[k];
+    }
+
+    /**
+     * @param letter code of the letter
+     * @param letters size of the alphabet
+     * @param length the least length
+     * @return row of the int profile for the letter
+     */
+
+    int[] intProfile(int letter, int letters, int length){
+
+        if(intProfile.length < letters)
+            intProfile = Arrays.copyOf(intProfile, letters);
+        if(intProfile[letter] == null || intProfile[letter].length < length)
+            intProfile[letter] = new int[grow(intProfile[letter] == null ? 0 : intProfile[letter].length, length, Integer.BYTES)];
+        return intProfile[letter];
+    }
+
+    /**
+     * @param letter code of the letter
+     * @param letters size of the alphabet
+     * @param length the least length
+     * @return row of the short profile for the letter
+     */
+
+    short[] shortProfile(int letter, int letters, int length){
+
+        if(shortProfile.length < letters)
+            shortProfile = Arrays.copyOf(shortProfile, letters);
+        if(shortProfile[letter] == null || shortProfile[letter].length < length)
+            shortProfile[letter] = new short[grow(shortProfile[letter] == null ? 0 : shortProfile[letter].length, length, Short.BYTES)];
+        return shortProfile[letter];
+    }
+
+    /**
+     * @param k number of the row
+     * @param length the least length
+     * @return row k of flags, all false
+     */
+
+    boolean[] flags(int k, int length){
+
+        if(flags[k].length < length)
+            flags[k] = new boolean[grow(flags[k].length, length, 1)];
+        else
+            Arrays.fill(flags[k], 0, length, false);
+        return flags[k];
+    }
+
+    /**
+     * @return the new length of a buffer of the given length that has to hold the requested one
+     */
+
+    private int grow(int length, int requested, int elementBytes){
+
+        longestRow = Math.max(longestRow, requested);
+        int grown = Math.min(Integer.MAX_VALUE - 8, Math.max(requested, length + (length >> 1)));
+        bytes += (long) (grown - length) * elementBytes;
+        growths++;
+        return grown;
+    }
+
+    /**
+     * @return bytes held by the buffers, the high-water mark since they are never shrunk
+     */
+
+    public long getBytes(){
+
+        return bytes;
+    }
+
+    /**
+     * @return the longest row a buffer had to grow for
+     */
+
+    public int getLongestRow(){
+
+        return longestRow;
+    }
+
+    /**
+     * @return number of times a buffer was (re)allocated
+     */
+
+    public int getGrowths(){
+
+        return growths;
+    }
+}
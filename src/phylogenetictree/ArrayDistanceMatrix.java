@@ -0,0 +1,79 @@
+package phylogenetictree;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * In-memory {@link phylogenetictree.DistanceMatrix}, stored as a packed lower triangle (without the diagonal) in one primitive array.
+ * The score of (i, j), i > j, is stored at i * (i - 1) / 2 + j, so every pair is stored once and no boxing is needed.
+ */
+public class ArrayDistanceMatrix implements DistanceMatrix {
+    
+    /**
+     * Number of rows (and columns).
+     */
+    private final int size;
+    
+    /**
+     * The packed lower triangle.
+     */
+    private final double[] values;
+    
+    /**
+     * Creates a matrix filled with zeros.
+     * @param _size number of rows (and columns)
+     * @throws IllegalArgumentException if the triangle does not fit into one array
+     */
+    
+    ArrayDistanceMatrix(int _size){
+        
+        if(DistanceMatrix.index(_size, 0) > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Too many sequences for the distance matrix on the heap: " + _size + " (at most 65536), use the out-of-core mode.");
+        size = _size;
+        values = new double[(int) DistanceMatrix.index(_size, 0)];
+    }
+    
+    @Override
+    public double get(int i, int j){
+        
+        return values[(int) DistanceMatrix.index(i, j)];
+    }
+    
+    @Override
+    public void set(int i, int j, double value){
+        
+        values[(int) DistanceMatrix.index(i, j)] = value;
+    }
+    
+    @Override
+    public int size(){
+        
+        return size;
+    }
+    
+    @Override
+    public void write(DataOutput out) throws IOException{
+        
+        for(double value : values){
+            out.writeDouble(value);
+        }
+    }
+    
+    /**
+     * Reads a matrix written by {@link phylogenetictree.DistanceMatrix#write}.
+     * @param in where to read from
+     * @param size number of rows of the matrix
+     * @return the matrix
+     * @throws IOException if error occured while reading
+     */
+    
+    static ArrayDistanceMatrix read(DataInput in, int size) throws IOException{
+        
+        ArrayDistanceMatrix matrix = new ArrayDistanceMatrix(size);
+        for(int i = 0; i < matrix.values.length; i++){
+            matrix.values[i] = in.readDouble();
+        }
+        return matrix;
+    }
+}
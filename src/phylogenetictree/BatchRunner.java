@@ -0,0 +1,254 @@
+package phylogenetictree;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Clusters many FASTA files in one process with one weights matrix, e. g. hundreds of per-gene files.
+ *
+ * Every file is a job of its own, run by a fixed number of job threads; the alignments of all jobs share one {@link java.util.concurrent.ForkJoinPool}, so the work units of a few huge files and of many small ones are stolen by whichever thread is free and all cores stay busy. The largest files are started first, so that none of them is left running alone at the end.
+ * Every input gets a Newick tree in the output directory, named after the file (without the FASTA and gzip extensions, numbered if two inputs have the same name), and the directory gets a summary "summary.tsv" with one line per input, written as soon as the input is done (so in the order they finish), so an interrupted batch still leaves the lines of its finished inputs.
+ * A failing input (unreadable, empty, out of memory, any other error of its job) is recorded in the summary with its error and does not stop the others.
+ */
+public class BatchRunner {
+
+    /**
+     * Extensions of the FASTA files taken from a directory, each possibly followed by ".gz".
+     */
+    private static final String[] EXTENSIONS = {".fasta", ".fa", ".fas", ".fna", ".faa"};
+
+    private final ScoringMatrix matrix;
+
+    /**
+     * Threads of the alignments of all jobs.
+     */
+    private final ForkJoinPool alignmentPool;
+    private final Aligners aligners;
+
+    private final int jobThreads;
+
+    /**
+     * Configures the clustering of every job (band, threshold, collapsing of duplicates, linkage).
+     */
+    private Consumer<HierarchicalClustering> jobSetup = hc -> {};
+
+    /**
+     * Outcome of one input.
+     */
+    private static class Result {
+
+        String status = "error";
+        int sequences = 0;
+        long milliseconds = 0;
+        String message = "";
+    }
+
+    /**
+     * @param _matrix the compiled weights matrix of all inputs
+     * @param parallelism number of alignment threads shared by the jobs
+     * @param _jobThreads number of inputs clustered at the same time
+     */
+
+    BatchRunner(ScoringMatrix _matrix, int parallelism, int _jobThreads){
+
+        matrix = _matrix;
+        alignmentPool = new ForkJoinPool(parallelism);
+        aligners = new Aligners(matrix);
+        jobThreads = _jobThreads;
+    }
+
+    /**
+     * @param _jobSetup called with the clustering of every input before it starts
+     */
+
+    public void setJobSetup(Consumer<HierarchicalClustering> _jobSetup){
+
+        jobSetup = _jobSetup;
+    }
+
+    /**
+     * Lists the inputs: the FASTA files of a directory (sorted by name), or the files named in a manifest, one path per line (relative to the manifest; blank lines and lines starting with '#' are skipped).
+     * @param source directory or manifest
+     * @return the inputs
+     * @throws IOException if the directory or the manifest cannot be read
+     */
+
+    public static List<Path> inputs(Path source) throws IOException{
+
+        List<Path> inputs = new ArrayList<>();
+        if(Files.isDirectory(source)){
+
+            try (Stream<Path> files = Files.list(source)){
+                files.filter(f -> Files.isRegularFile(f) && isFasta(f.getFileName().toString())).sorted().forEach(inputs::add);
+            }
+        }
+        else{
+
+            Path base = source.toAbsolutePath().getParent();
+            for(String line : Files.readAllLines(source, StandardCharsets.UTF_8)){
+
+                line = line.trim();
+                if(!line.isEmpty() && !line.startsWith("#"))
+                    inputs.add(base.resolve(line));
+            }
+        }
+        return inputs;
+    }
+
+    private static boolean isFasta(String name){
+
+        return !baseName(name).equals(name);
+    }
+
+    /**
+     * @return the name without a FASTA extension (and ".gz"), the name itself if it has none
+     */
+
+    private static String baseName(String name){
+
+        String lower = name.toLowerCase(Locale.ROOT);
+        int end = lower.endsWith(".gz") ? name.length() - 3 : name.length();
+        for(String extension : EXTENSIONS){
+
+            if(lower.startsWith(extension, end - extension.length()) && end > extension.length())
+                return name.substring(0, end - extension.length());
+        }
+        return name;
+    }
+
+    /**
+     * Clusters all inputs and writes their trees and the summary lines. Returns when every input is done.
+     * @param inputs the FASTA files
+     * @param output the output directory, created if necessary
+     * @return number of inputs that failed
+     * @throws IOException if the output directory or the summary cannot be written
+     * @throws InterruptedException if interrupted while waiting for the jobs
+     */
+
+    public int run(List<Path> inputs, Path output) throws IOException, InterruptedException{
+
+        Files.createDirectories(output);
+        int n = inputs.size();
+        Path[] trees = new Path[n];
+        HashSet<String> names = new HashSet<>();
+        for(int k = 0; k < n; k++){
+
+            String name = baseName(inputs.get(k).getFileName().toString());
+            String unique = name;
+            for(int copy = 2; !names.add(unique.toLowerCase(Locale.ROOT)); copy++){
+                unique = name + "-" + copy;
+            }
+            trees[k] = output.resolve(unique + ".nwk");
+        }
+
+        long[] sizes = new long[n];
+        Integer[] order = new Integer[n];
+        for(int k = 0; k < n; k++){
+
+            order[k] = k;
+            try {
+                sizes[k] = Files.size(inputs.get(k));
+            } catch (IOException ex) {
+                sizes[k] = 0;   // reported by its job
+            }
+        }
+        Arrays.sort(order, Comparator.comparingLong((Integer k) -> -sizes[k]));
+
+        Result[] results = new Result[n];
+        AtomicInteger done = new AtomicInteger();
+        AtomicInteger threads = new AtomicInteger();
+        ExecutorService jobs = Executors.newFixedThreadPool(jobThreads, r -> {
+
+            Thread t = new Thread(r, "batch-" + threads.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        try (Writer summary = new BufferedWriter(Files.newBufferedWriter(output.resolve("summary.tsv"), StandardCharsets.UTF_8))){
+
+            summary.write("input\tstatus\tsequences\tseconds\ttree\tmessage\n");
+            summary.flush();
+            List<Future<Void>> futures = new ArrayList<>();
+            for(int k : order){
+
+                futures.add(jobs.submit(() -> {
+
+                    Result r = results[k] = cluster(inputs.get(k), trees[k]);
+                    System.err.printf("%d/%d %s: %s%s\n", done.incrementAndGet(), n, inputs.get(k), r.status, r.message.isEmpty() ? "" : " (" + r.message + ")");
+                    synchronized(summary){
+
+                        summary.write(inputs.get(k) + "\t" + r.status + "\t" + r.sequences + "\t" + String.format(Locale.ROOT, "%.3f", r.milliseconds / 1000.0) + "\t" + (r.status.equals("ok") ? trees[k].getFileName() : "") + "\t" + r.message + "\n");
+                        summary.flush();
+                    }
+                    return null;
+                }));
+            }
+            for(Future<Void> f : futures){
+                try {
+                    f.get();
+                } catch (ExecutionException ex) {
+                    if(ex.getCause() instanceof IOException)
+                        throw (IOException) ex.getCause();   // the summary cannot be written
+                    throw new IllegalStateException("A batch job failed.", ex.getCause());
+                }
+            }
+        } finally {
+            jobs.shutdownNow();
+            alignmentPool.shutdownNow();
+        }
+
+        int failed = 0;
+        for(Result r : results){
+            if(!r.status.equals("ok"))
+                failed++;
+        }
+        return failed;
+    }
+
+    /**
+     * Clusters one input with the shared pool and writes its tree. Never throws: any failure, including errors such as a stack overflow, is returned as the result.
+     */
+
+    private Result cluster(Path input, Path tree){
+
+        Result result = new Result();
+        long start = System.nanoTime();
+        try {
+            SequenceArena sequences = FastaReader.read(input.toString(), false);
+            result.sequences = sequences.size();
+            if(sequences.size() == 0)
+                throw new IllegalArgumentException("no sequences");
+
+            HierarchicalClustering hc = new HierarchicalClustering(sequences, matrix);
+            hc.setPool(alignmentPool, aligners);
+            jobSetup.accept(hc);
+            hc.initalizeClustering();
+            hc.runClustering();
+            try (Writer out = TreeWriter.open(tree.toString())){
+                hc.getTreeWriter(id -> sequences.getHeader(id - 1)).writeNewick(out);
+            }
+            result.status = "ok";
+        } catch (Throwable ex) {    // whatever happens to one input must not abort the batch
+            result.message = ex.getClass().getSimpleName() + (ex.getMessage() == null ? "" : ": " + ex.getMessage().replace('\n', ' ').replace('\t', ' '));
+        }
+        result.milliseconds = (System.nanoTime() - start) / 1000000;
+        return result;
+    }
+}
@@ -0,0 +1,228 @@
+package phylogenetictree;
+
+import java.util.HashMap;
+import java.util.concurrent.CancellationException;
+
+/**
+ * The merge phase of the clustering, working on a {@link phylogenetictree.DistanceMatrix}.
+ * 
+ * Every node has a slot in the matrix. For every active slot the engine keeps its best partner (the one with the biggest score), so the best pair is found with one pass over the active slots.
+ * When two nodes are merged the virtual node takes the slot of one of them, its row is computed by the {@link phylogenetictree.Linkage} and only the rows whose best partner was one of the merged nodes are scanned again, so a merge usually costs O(n) and the whole clustering O(n^2) time and no memory besides the matrix.
+ * 
+ * Ties are broken deterministically: among pairs with equal scores the one with the smallest node number (and then the smallest second node number) is merged first. The smaller node number becomes the left child.
+ */
+class ClusteringEngine {
+    
+    /**
+     * Scores between the slots, updated in place by the merges.
+     */
+    private final DistanceMatrix scores;
+    
+    /**
+     * Node (sequence or virtual sequence) occupying the slot.
+     */
+    private final int[] node;
+    
+    /**
+     * Number of sequences below the node of the slot.
+     */
+    private final int[] size;
+    
+    private final Linkage linkage;
+    
+    /**
+     * Active slots in ascending order, so that the rows are always read in the order of the matrix. The first activeCount entries are valid.
+     */
+    private final int[] activeSlots;
+    private int activeCount;
+    
+    /**
+     * Best partner of each active slot and its score.
+     */
+    private final int[] best;
+    private final double[] bestScore;
+    
+    /**
+     * Counters told about every merge, null if instrumentation is off.
+     */
+    private Metrics metrics = null;
+    
+    /**
+     * Clusters single sequences with the weighted (WPGMA) linkage.
+     * @param _scores scores between the initial nodes, it is modified by the clustering
+     * @param _nodes node numbers of the slots (the sequence indices)
+     */
+    
+    ClusteringEngine(DistanceMatrix _scores, int[] _nodes){
+        
+        this(_scores, _nodes, null, Linkage.WEIGHTED);
+    }
+    
+    /**
+     * @param _scores scores between the initial nodes, it is modified by the clustering
+     * @param _nodes node numbers of the slots (the sequence indices or virtual nodes of collapsed duplicates)
+     * @param _sizes number of sequences below the node of every slot, null if every slot holds one sequence
+     * @param _linkage how the scores of a virtual node are computed
+     */
+    
+    ClusteringEngine(DistanceMatrix _scores, int[] _nodes, int[] _sizes, Linkage _linkage){
+        
+        scores = _scores;
+        node = _nodes.clone();
+        linkage = _linkage;
+        size = new int[node.length];
+        for(int s = 0; s < size.length; s++){
+            size[s] = _sizes == null ? 1 : _sizes[s];
+        }
+        activeCount = node.length;
+        activeSlots = new int[activeCount];
+        best = new int[activeCount];
+        bestScore = new double[activeCount];
+        
+        for(int s = 0; s < activeCount; s++){
+            
+            activeSlots[s] = s;
+            best[s] = -1;
+        }
+        for(int s = 1; s < activeCount; s++){   // one pass over the lower triangle in the order it is stored
+            
+            for(int t = 0; t < s; t++){
+                
+                double score = scores.get(s, t);
+                offer(s, t, score);
+                offer(t, s, score);
+            }
+        }
+    }
+    
+    void setMetrics(Metrics _metrics){
+        
+        metrics = _metrics;
+    }
+    
+    /**
+     * Scans the whole row of the slot for its best partner.
+     */
+    
+    private void findBest(int s){
+        
+        best[s] = -1;
+        for(int k = 0; k < activeCount; k++){
+            
+            int t = activeSlots[k];
+            if(t != s)
+                offer(s, t, scores.get(s, t));
+        }
+    }
+    
+    /**
+     * Makes t the best partner of s if it is better than the current one.
+     */
+    
+    private void offer(int s, int t, double score){
+        
+        if(best[s] < 0 || score > bestScore[s] || (score == bestScore[s] && node[t] < node[best[s]])){
+            
+            best[s] = t;
+            bestScore[s] = score;
+        }
+    }
+    
+    /**
+     * @return true if the pair (s, best[s]) goes before the pair (t, best[t])
+     */
+    
+    private boolean better(int s, int t){
+        
+        if(bestScore[s] != bestScore[t])
+            return bestScore[s] > bestScore[t];
+        
+        int s1 = Math.min(node[s], node[best[s]]), s2 = Math.max(node[s], node[best[s]]);
+        int t1 = Math.min(node[t], node[best[t]]), t2 = Math.max(node[t], node[best[t]]);
+        return s1 < t1 || (s1 == t1 && s2 < t2);
+    }
+    
+    /**
+     * Merges the best pairs until only the given number of nodes is left.
+     * Every virtual node gets the number tree.size() + 1 and is inserted into the tree together with its children.
+     * @param tree the tree to extend (parent -> (left child, right child))
+     * @param mergeScores receives the score of the merged pair for every new virtual node
+     * @param remaining number of nodes that are left unmerged
+     * @throws CancellationException if the thread is interrupted
+     */
+    
+    void run(HashMap<Integer, Pair<Integer, Integer>> tree, HashMap<Integer, Double> mergeScores, int remaining){
+        
+        while(activeCount > Math.max(remaining, 1)){
+            
+            if(Thread.currentThread().isInterrupted())
+                throw new CancellationException("The clustering was interrupted.");
+            int a = activeSlots[0];
+            for(int k = 1; k < activeCount; k++){
+                
+                if(better(activeSlots[k], a))
+                    a = activeSlots[k];
+            }
+            int b = best[a];
+            if(node[b] < node[a]){  // the virtual node stays in the slot of the left child
+                
+                int swap = a;
+                a = b;
+                b = swap;
+            }
+            
+            int newNode = tree.size() + 1;
+            tree.put(newNode, new Pair<>(node[a], node[b]));
+            mergeScores.put(newNode, bestScore[a]);
+            merge(a, b, newNode, bestScore[a]);
+            if(metrics != null)
+                metrics.merged(activeCount);
+        }
+    }
+    
+    /**
+     * @return score between the two nodes left by run(), NaN if another number of nodes is left
+     */
+    
+    double lastScore(){
+        
+        return activeCount == 2 ? scores.get(activeSlots[0], activeSlots[1]) : Double.NaN;
+    }
+    
+    /**
+     * Merges slots a and b, whose score is sab, into a virtual node kept in slot a.
+     */
+    
+    private void merge(int a, int b, int newNode, double sab){
+        
+        for(int k = 0; k < activeCount; k++){  // slot b is no longer active
+            
+            if(activeSlots[k] == b){
+                
+                System.arraycopy(activeSlots, k + 1, activeSlots, k, --activeCount - k);
+                break;
+            }
+        }
+        node[a] = newNode;
+        
+        for(int k = 0; k < activeCount; k++){
+            
+            int i = activeSlots[k];
+            if(i != a)
+                scores.set(a, i, linkage.update(scores.get(a, i), scores.get(b, i), sab, size[a], size[b], size[i]));  // weights between the virtual node and i
+        }
+        size[a] += size[b];
+        
+        findBest(a);
+        for(int k = 0; k < activeCount; k++){
+            
+            int i = activeSlots[k];
+            if(i == a)
+                continue;
+            if(best[i] == a || best[i] == b)
+                findBest(i);    // its best partner is gone, the row has to be scanned again
+            else
+                offer(i, a, scores.get(a, i));
+        }
+    }
+}
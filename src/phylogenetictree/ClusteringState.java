@@ -0,0 +1,183 @@
+package phylogenetictree;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+
+/**
+ * Saved result of a clustering run, used to extend it with new sequences without aligning the old ones again.
+ *
+ * The file holds the fingerprint of the weights matrix, the scoring mode (how the scores were made, see {@link phylogenetictree.HierarchicalClustering#setPreviousState}), the fingerprints (see {@link phylogenetictree.ScoreCache#fingerprint}) and numbers of the sequences and their pairwise scores before any merge, as doubles of the packed lower triangle.
+ * The scores are written right after the alignment phase, so saving needs no second copy of the matrix while the merges modify it.
+ * Loading reads only the sequences: the scores are memory-mapped and every score is read from the file when it is asked for, so a state of any size takes no heap.
+ */
+public class ClusteringState {
+    
+    private static final long MAGIC = 0x5054535441544532L;  // "PTSTATE2"
+    
+    private static final int SEGMENT_BITS = 30;
+    private static final long SEGMENT_MASK = (1L << SEGMENT_BITS) - 1;
+    
+    /**
+     * Fingerprint of the weights matrix the scores were computed with.
+     */
+    long matrixFingerprint;
+    
+    /**
+     * How the scores were computed, e. g. "exact".
+     */
+    String mode;
+    
+    /**
+     * Fingerprint and node number of every sequence (slot) of the scores.
+     */
+    long[] fingerprints;
+    int[] nodes;
+    
+    /**
+     * The mapped scores, in segments of 1 GB; the scores start at a multiple of 8 bytes, so none crosses a segment.
+     */
+    private MappedByteBuffer[] segments;
+    
+    /**
+     * Fingerprint -> slot, built on demand.
+     */
+    private HashMap<Long, Integer> slots;
+    
+    /**
+     * @return number of bytes before the scores of a state with this mode and number of sequences
+     */
+    
+    private static long scoresOffset(byte[] mode, int size){
+        
+        long header = 8 + 8 + 4 + mode.length + 4 + 12L * size;
+        return (header + 7) & ~7L;
+    }
+    
+    /**
+     * Writes the state: the sequences and their scores.
+     * @param fileName name of the state file, it is overwritten
+     * @param matrixFingerprint fingerprint of the weights matrix
+     * @param mode how the scores were computed
+     * @param fingerprints fingerprints of the sequences in the slot order
+     * @param nodes node numbers of the sequences in the slot order
+     * @param scores pairwise scores of the sequences
+     * @throws IOException if error occured while writing the file
+     */
+    
+    static void saveScores(String fileName, long matrixFingerprint, String mode, long[] fingerprints, int[] nodes, DistanceMatrix scores) throws IOException{
+        
+        byte[] modeBytes = mode.getBytes(StandardCharsets.UTF_8);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName), 1 << 20))){
+            
+            out.writeLong(MAGIC);
+            out.writeLong(matrixFingerprint);
+            out.writeInt(modeBytes.length);
+            out.write(modeBytes);
+            out.writeInt(fingerprints.length);
+            for(int i = 0; i < fingerprints.length; i++){
+                
+                out.writeLong(fingerprints[i]);
+                out.writeInt(nodes[i]);
+            }
+            for(long p = 8 + 8 + 4 + modeBytes.length + 4 + 12L * fingerprints.length; p < scoresOffset(modeBytes, fingerprints.length); p++){
+                out.writeByte(0);
+            }
+            scores.write(out);
+        }
+    }
+    
+    /**
+     * Reads a saved state and maps its scores.
+     * @param fileName name of the state file
+     * @return the state
+     * @throws IOException if error occured while reading the file or it is not a complete state file
+     */
+    
+    public static ClusteringState load(String fileName) throws IOException{
+        
+        ClusteringState state = new ClusteringState();
+        byte[] modeBytes;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName), 1 << 20))){
+            
+            if(in.readLong() != MAGIC)
+                throw new IOException("File " + fileName + " is not a clustering state.");
+            state.matrixFingerprint = in.readLong();
+            modeBytes = new byte[in.readInt()];
+            in.readFully(modeBytes);
+            state.mode = new String(modeBytes, StandardCharsets.UTF_8);
+            int n = in.readInt();
+            state.fingerprints = new long[n];
+            state.nodes = new int[n];
+            for(int i = 0; i < n; i++){
+                
+                state.fingerprints[i] = in.readLong();
+                state.nodes[i] = in.readInt();
+            }
+        }
+        
+        int n = state.fingerprints.length;
+        long offset = scoresOffset(modeBytes, n);
+        long bytes = (long) n * (n - 1) / 2 * Double.BYTES;
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)){
+            
+            if(channel.size() < offset + bytes)
+                throw new IOException("File " + fileName + " is truncated.");
+            state.segments = new MappedByteBuffer[(int) ((bytes + SEGMENT_MASK) >> SEGMENT_BITS)];
+            for(int s = 0; s < state.segments.length; s++){
+                
+                long position = (long) s << SEGMENT_BITS;
+                state.segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, offset + position, Math.min(SEGMENT_MASK + 1, bytes - position));
+            }
+        }   // the mappings stay valid after the channel is closed
+        return state;
+    }
+    
+    /**
+     * @param i slot of a sequence
+     * @param j slot of another sequence
+     * @return the saved score of the pair
+     */
+    
+    double score(int i, int j){
+        
+        long p = DistanceMatrix.index(i, j) * Double.BYTES;
+        return segments[(int) (p >>> SEGMENT_BITS)].getDouble((int) (p & SEGMENT_MASK));
+    }
+    
+    /**
+     * @param fingerprint fingerprint of a sequence
+     * @return slot of a sequence with this fingerprint, -1 if there is none
+     */
+    
+    int slotOf(long fingerprint){
+        
+        if(slots == null){
+            
+            slots = new HashMap<>();
+            for(int i = fingerprints.length - 1; i >= 0; i--){
+                slots.put(fingerprints[i], i);
+            }
+        }
+        return slots.getOrDefault(fingerprint, -1);
+    }
+    
+    /**
+     * @return number of sequences in the state
+     */
+    
+    public int size(){
+        
+        return fingerprints.length;
+    }
+}
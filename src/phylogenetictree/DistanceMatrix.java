@@ -0,0 +1,61 @@
+package phylogenetictree;
+
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Symmetric matrix of scores between nodes (without the diagonal), read and updated in place by the clustering.
+ * {@link phylogenetictree.ArrayDistanceMatrix} keeps it on the heap, {@link phylogenetictree.RowDistanceMatrix} too, growing row by row while the sequences are read, {@link phylogenetictree.MappedDistanceMatrix} in a memory-mapped file for inputs whose matrix does not fit into the heap.
+ */
+public interface DistanceMatrix {
+    
+    /**
+     * @param i row, i != j
+     * @param j column, i != j
+     * @return the score of (i, j), the same as of (j, i)
+     */
+    
+    double get(int i, int j);
+    
+    /**
+     * Sets the score of (i, j) and (j, i). Different pairs may be set by different threads at the same time.
+     * @param i row, i != j
+     * @param j column, i != j
+     * @param value the score
+     */
+    
+    void set(int i, int j, double value);
+    
+    /**
+     * @return number of rows (and columns)
+     */
+    
+    int size();
+    
+    /**
+     * Position of the pair (i, j) in a packed lower triangle, the order in which the pairs are written.
+     * @param i row, i != j
+     * @param j column, i != j
+     * @return position of the pair, the same for (i, j) and (j, i)
+     */
+    
+    static long index(int i, int j){
+        
+        return i > j ? (long) i * (i - 1) / 2 + j : (long) j * (j - 1) / 2 + i;
+    }
+    
+    /**
+     * Writes the packed lower triangle (row by row) as doubles, read back by {@link phylogenetictree.ArrayDistanceMatrix#read}.
+     * @param out where to write
+     * @throws IOException if error occured while writing
+     */
+    
+    default void write(DataOutput out) throws IOException{
+        
+        for(int i = 1; i < size(); i++){
+            for(int j = 0; j < i; j++){
+                out.writeDouble(get(i, j));
+            }
+        }
+    }
+}
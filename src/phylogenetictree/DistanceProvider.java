@@ -0,0 +1,35 @@
+package phylogenetictree;
+
+/**
+ * Source of pairwise scores used by {@link phylogenetictree.HierarchicalClustering} instead of (or in front of) the global alignment.
+ * As with the alignment, a bigger score means closer sequences.
+ */
+public interface DistanceProvider {
+    
+    /**
+     * Called once before any score is asked for.
+     * @param sequences all sequences to cluster (encoded), score(i, j) refers to sequences[i] and sequences[j]
+     * @param parallelism number of threads the preparation may use
+     */
+    
+    void prepare(byte[][] sequences, int parallelism);
+    
+    /**
+     * Computes the score of a pair. Called concurrently from many threads.
+     * @param i index of the first sequence
+     * @param j index of the second sequence
+     * @return the score, or NaN if the pair has to be aligned exactly
+     */
+    
+    double score(int i, int j);
+    
+    /**
+     * Describes how the scores are made, written into saved states and shard plans so that they are only combined with scores made the same way.
+     * @return the kind of provider and its parameters
+     */
+    
+    default String mode(){
+        
+        return getClass().getSimpleName();
+    }
+}
@@ -0,0 +1,248 @@
+package phylogenetictree;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.function.ObjIntConsumer;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads FASTA files into a {@link phylogenetictree.SequenceArena}.
+ *
+ * Regular files are memory-mapped (in chunks of at most 1 GB) and parsed byte by byte, gzip files (recognized by their magic number) and other inputs such as pipes are read as a stream. No String is created for the sequences.
+ * Both '\n' and "\r\n" line ends are accepted, blank lines (also lines of blanks only) and blanks inside sequences are skipped; they never change the state of the parser. Consecutive description lines belong to one sequence, lines before the first description make a sequence with an empty description.
+ */
+public class FastaReader {
+
+    private static final int BUFFER = 1 << 16;
+    private static final long CHUNK = 1L << 30;
+
+    /**
+     * If true, every sequence is printed when it has been read.
+     */
+    private final boolean verbose;
+
+    private final SequenceArena arena = new SequenceArena();
+
+    /**
+     * Told about every sequence as soon as it is complete, null if nobody listens.
+     */
+    private final ObjIntConsumer<SequenceArena> listener;
+
+    /**
+     * State of the parser: at the beginning of a line, inside a description line, inside a sequence (a description or a residue has been read, blanks do not count).
+     */
+    private boolean lineStart = true, inHeader = false, inSequence = false;
+
+    FastaReader(boolean _verbose){
+
+        this(_verbose, null);
+    }
+
+    /**
+     * @param _verbose if true, every sequence is printed when it has been read
+     * @param _listener called on the reading thread with the arena and the index of every sequence as soon as it is complete, e. g. to start aligning it while the rest of the file is read; it may block to slow the reading down
+     */
+
+    FastaReader(boolean _verbose, ObjIntConsumer<SequenceArena> _listener){
+
+        verbose = _verbose;
+        listener = _listener;
+    }
+
+    /**
+     * Reads all sequences of the file.
+     * @param fileName name of the FASTA file, possibly gzipped
+     * @param verbose if true, the sequences are printed to the standard output as they are read
+     * @return the sequences
+     * @throws IOException if error occured while reading the file
+     */
+
+    public static SequenceArena read(String fileName, boolean verbose) throws IOException{
+
+        return read(fileName, verbose, null);
+    }
+
+    /**
+     * Reads all sequences of the file and reports every one as soon as it is complete.
+     * @param fileName name of the FASTA file, possibly gzipped
+     * @param verbose if true, the sequences are printed to the standard output as they are read
+     * @param listener called with the arena and the index of every complete sequence, see {@link phylogenetictree.FastaReader#FastaReader(boolean, ObjIntConsumer)}
+     * @return the sequences
+     * @throws IOException if error occured while reading the file
+     */
+
+    public static SequenceArena read(String fileName, boolean verbose, ObjIntConsumer<SequenceArena> listener) throws IOException{
+
+        FastaReader reader = new FastaReader(verbose, listener);
+        reader.readFile(Paths.get(fileName));
+        return reader.finish();
+    }
+
+    /**
+     * Reads all sequences the stream delivers, e. g. sequences sent inline to {@link phylogenetictree.TreeService}.
+     * @param in the stream (not gzipped), it is not closed
+     * @return the sequences
+     * @throws IOException if error occured while reading the stream
+     */
+
+    public static SequenceArena read(InputStream in) throws IOException{
+
+        FastaReader reader = new FastaReader(false);
+        reader.readStream(in);
+        return reader.finish();
+    }
+
+    /**
+     * Parses the file, choosing between the memory-mapped and the streaming path.
+     */
+
+    void readFile(Path path) throws IOException{
+
+        if(!Files.isRegularFile(path) || isGzip(path)){
+
+            InputStream in = new BufferedInputStream(Files.newInputStream(path), BUFFER);
+            try {
+                if(isGzip(path))
+                    in = new GZIPInputStream(in, BUFFER);
+                readStream(in);
+            } finally {
+                in.close();
+            }
+            return;
+        }
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)){
+
+            byte[] buffer = new byte[BUFFER];
+            long size = channel.size();
+            for(long position = 0; position < size; position += CHUNK){
+
+                MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(CHUNK, size - position));
+                while(chunk.hasRemaining()){
+
+                    int n = Math.min(buffer.length, chunk.remaining());
+                    chunk.get(buffer, 0, n);
+                    parse(buffer, 0, n);
+                }
+            }
+        }
+    }
+
+    /**
+     * Parses everything the stream delivers.
+     */
+
+    void readStream(InputStream in) throws IOException{
+
+        byte[] buffer = new byte[BUFFER];
+        int n;
+        while((n = in.read(buffer)) > 0){
+            parse(buffer, 0, n);
+        }
+    }
+
+    private static boolean isGzip(Path path) throws IOException{
+
+        if(!Files.isRegularFile(path))
+            return path.toString().endsWith(".gz");
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)){
+
+            ByteBuffer magic = ByteBuffer.allocate(2);
+            while(magic.hasRemaining() && channel.read(magic) > 0);
+            return magic.position() == 2 && magic.get(0) == (byte) 0x1f && magic.get(1) == (byte) 0x8b;
+        }
+    }
+
+    /**
+     * Feeds the next piece of the file to the parser.
+     * @param buffer bytes of the file
+     * @param from first byte to parse
+     * @param to end of the bytes to parse
+     */
+
+    void parse(byte[] buffer, int from, int to){
+
+        for(int p = from; p < to; p++){
+
+            byte c = buffer[p];
+            if(c == '\r')
+                continue;
+            if(c == '\n'){
+
+                inHeader = false;
+                lineStart = true;
+                continue;
+            }
+
+            if(lineStart){
+
+                lineStart = false;
+                if(c == '>'){
+
+                    if(inSequence && arena.pendingLength() > 0)
+                        endSequence();
+                    else if(inSequence)
+                        arena.addHeader(new byte[]{'\n'}, 0, 1);  // one more description line of the same sequence
+                    inSequence = true;
+                    inHeader = true;
+                    continue;
+                }
+            }
+
+            if(inHeader){
+
+                int end = p;
+                while(end < to && buffer[end] != '\n' && buffer[end] != '\r'){
+                    end++;
+                }
+                arena.addHeader(buffer, p, end);
+                p = end - 1;
+            }
+            else if(c != ' ' && c != '\t'){
+
+                inSequence = true;
+                arena.addResidue(c);
+            }
+        }
+    }
+
+    /**
+     * Closes the last sequence.
+     * @return all sequences read
+     */
+
+    SequenceArena finish(){
+
+        if(inSequence)
+            endSequence();
+        inSequence = false;
+
+        if(verbose)
+            System.out.printf("All sequences with numbers greater than %d are clusters.\n", arena.size());
+        return arena;
+    }
+
+    private void endSequence(){
+
+        arena.endSequence();
+        int i = arena.size() - 1;
+        if(listener != null)
+            listener.accept(arena, i);
+
+        if(verbose){
+
+            System.out.printf("FASTA description of the sequence no. %d: \n>%s\n", i + 1, arena.getHeader(i).replace("\n", "\n>"));  // every description line as it was read
+            System.out.printf("sequence no. %d: %s\n\n", i + 1, new String(arena.get(i), StandardCharsets.ISO_8859_1));
+        }
+    }
+}
@@ -1,8 +1,32 @@
 package phylogenetictree;
 
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.PriorityQueue;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
 
 /**
  * Class that handles all computation. Initializes all structuers and then computes the clustering and the phylogenetic tree.
@@ -12,122 +36,1235 @@ public class HierarchicalClustering {
     
     HierarchicalClustering(HashMap<Integer, String> _sequences, HashMap<Character, HashMap<Character, Double>> _weights){
         
-        weights = new HashMap<>(_weights);
-        sequences = new HashMap<>(_sequences);
+        this(_sequences, new ScoringMatrix(_weights));
     }
     
     /**
-     * Structure contatining the given cost matrix.s
+     * @param _sequences sequences to cluster
+     * @param _matrix compiled cost matrix, the sequences are encoded with it once here
      */
-    HashMap<Character, HashMap<Character, Double>> weights;
+    
+    HierarchicalClustering(HashMap<Integer, String> _sequences, ScoringMatrix _matrix){
+        
+        matrix = _matrix;
+        aligners = new Aligners(matrix);
+        sequences = new HashMap<>();
+        for(Integer it : _sequences.keySet()){
+            
+            sequences.put(it, matrix.encode(_sequences.get(it)));
+        }
+    }
     
     /**
-     * Structure containing all the given sequences.
+     * @param _sequences sequences to cluster, sequence i of the arena gets the index i + 1
+     * @param _matrix compiled cost matrix, the sequences are encoded with it once here
      */
-    HashMap<Integer, String> sequences;
-
+    
+    HierarchicalClustering(SequenceArena _sequences, ScoringMatrix _matrix){
+        
+        matrix = _matrix;
+        aligners = new Aligners(matrix);
+        sequences = new HashMap<>();
+        for(int i = 0; i < _sequences.size(); i++){
+            
+            sequences.put(i + 1, _sequences.encode(i, matrix));
+        }
+    }
+    
+    /**
+     * @param _matrix compiled cost matrix, the sequences are read and encoded by {@link phylogenetictree.HierarchicalClustering#readAndAlign}
+     */
+    
+    HierarchicalClustering(ScoringMatrix _matrix){
+        
+        matrix = _matrix;
+        aligners = new Aligners(matrix);
+        sequences = new HashMap<>();
+    }
+    
     /**
-     * The indicies of sequences (possibly virtual) that are currently being processed.
+     * Structure contatining the given cost matrix (compiled).
      */
-    private ArrayList<Integer> activeNodes; // nodes that are currently being processed
+    ScoringMatrix matrix;
     
+    /**
+     * Structure containing all the given sequences (encoded by the matrix).
+     */
+    HashMap<Integer, byte[]> sequences;
+
     /**
      * The generated phylogenetic tree.
      */
     private HashMap<Integer, Pair<Integer, Integer>> tree;  // binary tree: (parent -> (left child, right child)), children of leaves are -1
     
     /**
-     * HashTable containing all possible scores.
+     * Score of the merged pair for every virtual node.
+     */
+    private HashMap<Integer, Double> mergeScores;
+    
+    /**
+     * Scores between the sequences: slot i holds the sequence nodes[i]. Updated in place by the merges.
+     */
+    private DistanceMatrix scores;
+    
+    /**
+     * Node numbers (sequence indices) of the slots of {@link phylogenetictree.HierarchicalClustering#scores}.
+     */
+    private int[] nodes;
+    
+    /**
+     * Number of threads used to compute the pairwise alignments.
+     */
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    
+    /**
+     * Sets the number of threads used by {@link phylogenetictree.HierarchicalClustering#initalizeClustering}. The result does not depend on it.
+     * @param _parallelism number of threads, at least 1
+     */
+    
+    public void setParallelism(int _parallelism){
+        
+        if(_parallelism < 1)
+            throw new IllegalArgumentException("Parallelism must be positive.");
+        parallelism = _parallelism;
+    }
+    
+    /**
+     * Initial band width of the banded alignment, 0 if the whole tables are filled.
+     */
+    private int band = 0;
+    
+    /**
+     * The biggest band width tried by the banded alignment.
+     */
+    private int maxBand = Integer.MAX_VALUE;
+    
+    /**
+     * Statistics of the banded alignment: number of pairs, number of band doublings and number of pairs that reached the band limit.
+     */
+    private final LongAdder bandedPairs = new LongAdder(), bandWidenings = new LongAdder(), bandsExceeded = new LongAdder();
+    
+    /**
+     * Switches the pairwise alignments to the banded mode ({@link phylogenetictree.SmithWaterman#alignBanded}). The scores stay exact.
+     * @param _band initial band width, 0 switches the banded mode off
+     * @param _maxBand the biggest band width tried before the whole table is filled
+     */
+    
+    public void setBand(int _band, int _maxBand){
+        
+        if(_band < 0 || _maxBand < 1)
+            throw new IllegalArgumentException("Band widths must be positive.");
+        band = _band;
+        maxBand = _maxBand;
+    }
+    
+    /**
+     * @return a line of statistics of the banded alignment
+     */
+    
+    public String getBandStatistics(){
+        
+        long pairs = bandedPairs.sum();
+        return String.format("banded alignments: %d, band widenings: %d (%.2f per pair), band limit reached: %d", pairs, bandWidenings.sum(), pairs == 0 ? 0.0 : (double) bandWidenings.sum() / pairs, bandsExceeded.sum());
+    }
+    
+    /**
+     * The least score of interest, NaN if the scores are exact.
+     */
+    private double scoreCap = Double.NaN;
+    
+    /**
+     * Statistics of the bounded alignment: number of pairs, number of abandoned pairs, cells filled and cells of the whole tables.
+     */
+    private final LongAdder boundedPairs = new LongAdder(), abandonedPairs = new LongAdder(), boundedCells = new LongAdder(), fullCells = new LongAdder();
+    
+    /**
+     * Switches the pairwise alignments to the bounded mode ({@link phylogenetictree.SmithWaterman#alignBounded}): pairs that cannot reach the threshold are abandoned early and all get the threshold as their score, i. e. every score becomes max(score, threshold).
+     * Such capped scores are never put into the score cache; exact scores found in it are capped as well. For asymmetric weights the pair score is the mean of both capped orders.
+     * @param threshold the least score of interest, NaN to compute exact scores
+     */
+    
+    public void setScoreCap(double threshold){
+        
+        scoreCap = threshold;
+    }
+    
+    /**
+     * @return statistics of the bounded alignment
+     */
+    
+    public String getBoundStatistics(){
+        
+        long pairs = boundedPairs.sum(), full = fullCells.sum();
+        return String.format("bounded alignments: %d, abandoned: %d (%.1f%%), cells filled: %.1f%% of the full tables", pairs, abandonedPairs.sum(), pairs == 0 ? 0.0 : 100.0 * abandonedPairs.sum() / pairs, full == 0 ? 0.0 : 100.0 * boundedCells.sum() / full);
+    }
+    
+    /**
+     * @return true if the score was capped by the bounded mode, so it is not exact
+     */
+    
+    private boolean capped(double score){
+        
+        return score <= scoreCap;   // false when the cap is NaN
+    }
+    
+    /**
+     * Persistent cache of the pairwise scores, null if not used.
+     */
+    private ScoreCache cache = null;
+    
+    /**
+     * Makes {@link phylogenetictree.HierarchicalClustering#initalizeClustering} look every pair up in the cache before aligning it and store the new scores in it.
+     * @param _cache the cache, null to switch it off
+     */
+    
+    public void setScoreCache(ScoreCache _cache){
+        
+        cache = _cache;
+    }
+    
+    /**
+     * State of an earlier run whose scores are reused, null if there is none.
+     */
+    private ClusteringState previous = null;
+    
+    /**
+     * Number of pair scores taken from the earlier run.
+     */
+    private final LongAdder reusedPairs = new LongAdder();
+    
+    /**
+     * Fingerprints of the sequences in the slot order, see {@link phylogenetictree.ScoreCache#fingerprint}.
+     */
+    private long[] fingerprints;
+    
+    /**
+     * Makes {@link phylogenetictree.HierarchicalClustering#initalizeClustering} take the scores of all pairs of sequences that were already clustered in an earlier run from its saved state (sequences are recognized by their contents), so only the pairs with a new sequence are aligned.
+     * The merge phase is then run on the complete matrix again, so the tree is exactly the one a full rebuild would give.
+     * The state must have been made with the same scoring mode (see {@link phylogenetictree.HierarchicalClustering#stateMode}): exact scores are never mixed with approximate or capped ones. Call it after the distance provider, the score cap and the out-of-core mode are set.
+     * @param _previous the saved state, null to switch it off
+     * @throws IllegalArgumentException if the state was computed with a different weights matrix or scoring mode
+     */
+    
+    public void setPreviousState(ClusteringState _previous){
+        
+        if(_previous != null && _previous.matrixFingerprint != matrix.fingerprint())
+            throw new IllegalArgumentException("The saved clustering state was computed with a different weights matrix.");
+        if(_previous != null && !_previous.mode.equals(stateMode()))
+            throw new IllegalArgumentException("The saved clustering state holds " + _previous.mode + " scores, this run computes " + stateMode() + " scores.");
+        previous = _previous;
+    }
+    
+    /**
+     * @return how the pair scores are computed: "exact", or the mode of the distance provider and the score cap, e. g. "minhash k=21 sketch=1000, capped at 50.0"
+     */
+    
+    String scoringMode(){
+        
+        String mode = provider == null ? "" : provider.mode();
+        if(!Double.isNaN(scoreCap))
+            mode += (mode.isEmpty() ? "" : ", ") + "capped at " + scoreCap;
+        return mode.isEmpty() ? "exact" : mode;
+    }
+    
+    /**
+     * @return the scoring mode of the saved states, which also tells whether the matrix rounds the scores to floats (out-of-core mode)
+     */
+    
+    private String stateMode(){
+        
+        return scoringMode() + (scoresFile == null ? "" : ", single precision");
+    }
+    
+    /**
+     * @return number of pair scores taken from the saved state of an earlier run
+     */
+    
+    public long getReusedPairs(){
+        
+        return reusedPairs.sum();
+    }
+    
+    /**
+     * Saves the sequence fingerprints and the pairwise scores. Call after {@link phylogenetictree.HierarchicalClustering#initalizeClustering} and before {@link phylogenetictree.HierarchicalClustering#runClustering}, which modifies the scores.
+     * @param fileName name of the state file
+     * @throws IOException if error occured while writing the file
+     */
+    
+    public void saveScores(String fileName) throws IOException{
+        
+        ClusteringState.saveScores(fileName, matrix.fingerprint(), stateMode(), fingerprints, nodes, scores);
+    }
+    
+    /**
+     * Writes the pairwise alignments of the closest pairs: every virtual node whose both children are sequences, in the order of the merges.
+     * The alignments are computed with {@link phylogenetictree.SmithWaterman#alignTraceback} in linear memory, so long sequences can be aligned.
+     * @param fileName name of the output file
+     * @throws IOException if the file cannot be written
+     */
+    
+    public void writeAlignments(String fileName) throws IOException{
+        
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(fileName), StandardCharsets.UTF_8))){
+            
+            for(int node = sequences.size() + 1; tree.containsKey(node); node++){
+                
+                int left = tree.get(node).getLeft(), right = tree.get(node).getRight();
+                if(!sequences.containsKey(left) || !sequences.containsKey(right))
+                    continue;
+                
+                SmithWaterman alignment = new SmithWaterman(sequences.get(left), sequences.get(right), matrix);
+                alignment.alignTraceback();
+                out.printf("%d -> (%d, %d) score %s\n", node, left, right, alignment.getScore());
+                out.printf("%s\n%s\n%s\n\n", alignment.getFirstAligned(), alignment.getAlignment(), alignment.getSecondAligned());
+            }
+        }
+    }
+    
+    /**
+     * Source of scores tried before the alignment, null if every pair is aligned.
+     */
+    private DistanceProvider provider = null;
+    
+    /**
+     * Number of pair scores taken from the distance provider.
+     */
+    private final LongAdder providedPairs = new LongAdder();
+    
+    /**
+     * Makes {@link phylogenetictree.HierarchicalClustering#initalizeClustering} ask the provider for the score of every pair first. Only the pairs it returns NaN for are aligned (and go through the score cache).
+     * @param _provider the provider, for example {@link phylogenetictree.MinHashDistance}, null to align every pair
+     */
+    
+    public void setDistanceProvider(DistanceProvider _provider){
+        
+        provider = _provider;
+    }
+    
+    /**
+     * @return number of pair scores taken from the distance provider
+     */
+    
+    public long getProvidedPairs(){
+        
+        return providedPairs.sum();
+    }
+    
+    /**
+     * Scratch file of the out-of-core score matrix, null to keep the scores on the heap.
+     */
+    private Path scoresFile = null;
+    
+    /**
+     * Keeps the pairwise scores in a memory-mapped file of floats ({@link phylogenetictree.MappedDistanceMatrix}) instead of the heap, for inputs whose score matrix does not fit into it.
+     * The scores lose the precision of doubles, so pairs whose scores differ by less than that may be merged in another order.
+     * @param fileName name of the scratch file (it needs about 2 * n^2 bytes of disk space and is deleted at the end), null to keep the scores on the heap
+     */
+    
+    public void setOutOfCore(String fileName){
+        
+        scoresFile = fileName == null ? null : Paths.get(fileName);
+    }
+    
+    /**
+     * Progress and performance counters, null if instrumentation is off.
+     */
+    private Metrics metrics = null;
+    
+    /**
+     * Makes the alignment and the merge phase report their progress (once per pair and once per merge).
+     * @param _metrics the counters, null to switch instrumentation off
+     */
+    
+    public void setMetrics(Metrics _metrics){
+        
+        metrics = _metrics;
+    }
+    
+    /**
+     * How the scores of a merged node are computed, the weighted linkage by default.
+     */
+    private Linkage linkage = Linkage.WEIGHTED;
+    
+    /**
+     * @param _linkage the linkage of the merge phase; the single linkage gets a spanning tree instead of the merge queue, see {@link phylogenetictree.SingleLinkageTree}
+     */
+    
+    public void setLinkage(Linkage _linkage){
+        
+        linkage = _linkage;
+    }
+    
+    /**
+     * Identity from which sequences of equal length are collapsed into one, 1 for identical sequences only, NaN if nothing is collapsed.
+     */
+    private double collapseIdentity = Double.NaN;
+    
+    /**
+     * Sequences merged into another one before the alignment, in the order of the virtual node numbers: {virtual node, left child, right child, representative, the near-duplicate merged or -1 if the merged sequences are identical to the representative}.
+     */
+    private final ArrayList<int[]> collapsed = new ArrayList<>();
+    private int nearDuplicates = 0;
+    
+    /**
+     * Collapses duplicate sequences before the alignment: only one representative of every group of duplicates is aligned with the others, and the duplicates are merged into it first, one after another, with the score of aligning them with it.
+     * Identical sequences (found by their contents) get exactly the tree of the full computation up to the order of ties, since the merged node has the same scores as the representative. Near-duplicates are sequences of the same length that match the representative in at least the given fraction of positions; they are approximated by it.
+     * @param identity 1 to collapse identical sequences only, less than 1 to collapse near-duplicates too, NaN to switch collapsing off
+     */
+    
+    public void setCollapse(double identity){
+        
+        if(identity <= 0 || identity > 1)
+            throw new IllegalArgumentException("The identity of collapsed sequences must be in (0, 1].");
+        collapseIdentity = identity;
+    }
+    
+    /**
+     * @return a line of statistics of the collapsing
+     */
+    
+    public String getCollapseStatistics(){
+        
+        return String.format("collapsed sequences: %d (%d near-duplicates), aligned sequences: %d", collapsed.size(), nearDuplicates, sequences.size() - collapsed.size());
+    }
+    
+    /**
+     * Groups the duplicates: every sequence (in the order of the numbers) joins the first representative identical to it or, with near-duplicates, the first representative of the same length within the identity, otherwise it becomes a representative itself.
+     * The identical sequences of a group are merged the way the clustering would merge them (their scores are all equal, so the two smallest node numbers first), then the near-duplicates are merged into the group one by one.
+     * Fills {@link phylogenetictree.HierarchicalClustering#collapsed}.
+     * @param ids numbers of all sequences
+     * @return numbers of the representatives, in the order of ids
+     */
+    
+    private Integer[] collapse(Integer[] ids){
+        
+        collapsed.clear();
+        nearDuplicates = 0;
+        Integer[] sorted = ids.clone();
+        Arrays.sort(sorted);
+        HashMap<Long, List<Integer>> byContent = new HashMap<>();
+        HashMap<Integer, List<Integer>> byLength = new HashMap<>();
+        HashMap<Integer, ArrayDeque<Integer>> identical = new HashMap<>();   // representative -> the identical sequences, itself first
+        HashMap<Integer, List<Integer>> near = new HashMap<>();
+        
+        for(int id : sorted){
+            
+            byte[] sequence = sequences.get(id);
+            List<Integer> same = byContent.computeIfAbsent(ScoreCache.fingerprint(sequence), f -> new ArrayList<>());
+            int representative = -1;
+            for(int r : same){
+                
+                if(Arrays.equals(sequences.get(r), sequence)){
+                    
+                    representative = r;
+                    break;
+                }
+            }
+            if(representative >= 0){
+                
+                identical.get(representative).add(id);
+                continue;
+            }
+            if(collapseIdentity < 1){
+                
+                int maxMismatches = (int) Math.floor((1 - collapseIdentity) * sequence.length);
+                for(int r : byLength.getOrDefault(sequence.length, List.of())){
+                    
+                    if(similar(sequences.get(r), sequence, maxMismatches)){
+                        
+                        near.computeIfAbsent(r, x -> new ArrayList<>()).add(id);
+                        nearDuplicates++;
+                        representative = r;
+                        break;
+                    }
+                }
+            }
+            if(representative < 0){
+                
+                same.add(id);
+                byLength.computeIfAbsent(sequence.length, l -> new ArrayList<>()).add(id);
+                identical.put(id, new ArrayDeque<>(List.of(id)));
+            }
+        }
+        
+        ArrayList<Integer> representatives = new ArrayList<>();
+        for(int id : ids){
+            
+            if(!identical.containsKey(id))
+                continue;
+            representatives.add(id);
+            ArrayDeque<Integer> queue = identical.get(id);    // new nodes get bigger numbers than all queued ones, so the queue stays sorted
+            while(queue.size() > 1){
+                
+                int left = queue.poll(), right = queue.poll();
+                int node = sequences.size() + collapsed.size() + 1;    // numbered like the merges of the clustering, which follow
+                collapsed.add(new int[]{node, left, right, id, -1});
+                queue.add(node);
+            }
+            for(int duplicate : near.getOrDefault(id, List.of())){
+                
+                int node = sequences.size() + collapsed.size() + 1;
+                collapsed.add(new int[]{node, Math.min(queue.peek(), duplicate), Math.max(queue.peek(), duplicate), id, duplicate});
+                queue.add(node);
+                queue.poll();
+            }
+        }
+        return representatives.toArray(new Integer[0]);
+    }
+    
+    /**
+     * @return true if the sequences of equal length differ in at most maxMismatches positions
      */
-    private HashMap<Pair<Integer, Integer>, Double> scores; // (left, right) -> weights(left,right)
+    
+    private static boolean similar(byte[] a, byte[] b, int maxMismatches){
+        
+        int mismatches = 0;
+        for(int i = 0; i < a.length; i++){
+            
+            if(a[i] != b[i] && ++mismatches > maxMismatches)
+                return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Inserts the merges of the collapsed sequences into the tree. Their scores are aligned with all threads, once per representative for the identical ones.
+     */
+    
+    private void expandCollapsed(){
+        
+        if(collapsed.isEmpty())
+            return;
+        double[] collapseScores = new double[collapsed.size()];
+        ConcurrentHashMap<Integer, Double> selfScores = new ConcurrentHashMap<>();
+        ForkJoinPool pool = sharedPool != null ? sharedPool : new ForkJoinPool(parallelism);
+        try {
+            pool.submit(() -> IntStream.range(0, collapseScores.length).parallel().forEach(k -> {
+                
+                if(cancelled)
+                    return;
+                int[] c = collapsed.get(k);
+                byte[] representative = sequences.get(c[3]);
+                if(c[4] < 0)
+                    collapseScores[k] = selfScores.computeIfAbsent(c[3], r -> alignPair(representative, representative));
+                else{
+                    
+                    byte[] duplicate = sequences.get(c[4]);
+                    collapseScores[k] = matrix.isSymmetric() ? alignPair(representative, duplicate) : 0.5*(alignPair(representative, duplicate) + alignPair(duplicate, representative));
+                }
+            })).get();
+        } catch (InterruptedException ex) {
+            cancelled = true;
+            Thread.currentThread().interrupt();
+            throw cancellation("Alignment of the duplicates", ex);
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException("Alignment of the duplicates failed.", ex.getCause());
+        } finally {
+            if(pool != sharedPool)
+                pool.shutdownNow();
+        }
+        
+        for(int k = 0; k < collapseScores.length; k++){
+            
+            int[] c = collapsed.get(k);
+            tree.put(c[0], new Pair(c[1], c[2]));
+            mergeScores.put(c[0], collapseScores[k]);
+        }
+    }
     
     /**
-     *  Structure to process activeNodes.
+     * Reusable aligner of every thread, shared with other clusterings when they share the pool.
      */
-    private PriorityQueue<Pair <Pair<Integer, Integer>, Double> > activeNodeScores; // at the top is the pair of the closest sequences
+    private Aligners aligners;
+    
+    /**
+     * @return a line with the high-water marks of the alignment workspaces (of all clusterings sharing the pool)
+     */
+    
+    public String getWorkspaceStatistics(){
+        
+        return aligners.getStatistics();
+    }
+    
+    /**
+     * Computes the score of the global alignment of a and b in the configured mode, with the aligner of the current thread.
+     */
+    
+    private double alignPair(byte[] a, byte[] b){
+        
+        SmithWaterman alignment = aligners.get();
+        alignment.setPair(a, b);
+        long cells = alignment.getCells();
+        
+        if(!Double.isNaN(scoreCap)){
+            
+            alignment.alignBounded(scoreCap);
+            boundedPairs.increment();
+            boundedCells.add(alignment.getCells() - cells);
+            fullCells.add((long) a.length * b.length);
+            if(alignment.isAbandoned())
+                abandonedPairs.increment();
+        }
+        else if(band > 0){
+            
+            alignment.alignBanded(band, maxBand);
+            bandedPairs.increment();
+            bandWidenings.add(alignment.getBandWidenings());
+            if(alignment.isBandExceeded())
+                bandsExceeded.increment();
+        }
+        else
+            alignment.alignScore(); // only the score is needed, so no traceback tables are allocated
+        if(metrics != null)
+            metrics.cellsDone(alignment.getCells() - cells);
+        return alignment.getScore();
+    }
+    
+    /**
+     * Number of pairs in one work unit of {@link phylogenetictree.HierarchicalClustering#alignAllPairs}.
+     */
+    private static final int UNIT = 64;
+    
+    /**
+     * Aligns every unordered pair of the given sequences once, using all threads of a work-stealing pool.
+     * The sequences are ranked by length and the pairs are cut into work units of up to {@link phylogenetictree.HierarchicalClustering#UNIT} pairs sharing one sequence.
+     * The units are handed out from a shared counter, the most expensive ones first, so the threads finish at roughly the same time. Every score is written to its own cell, so the result does not depend on the number of threads.
+     * With symmetric weights score(a, b) == score(b, a), so every unordered pair is aligned once. Otherwise both orders are aligned and the matrix gets their mean.
+     * Out of core the work units are the tiles of the {@link phylogenetictree.MappedDistanceMatrix} instead, in the order of the file, so the pages are written one after another and no unit table of O(n^2) entries is needed.
+     * @param seqs encoded sequences
+     * @return scores of the pairs, row i corresponds to seqs[i]
+     */
+    
+    private DistanceMatrix alignAllPairs(final byte[][] seqs){
+        
+        final int n = seqs.length;
+        final DistanceMatrix result = newScoreMatrix(n);
+        
+        final long matrixFingerprint = matrix.fingerprint();
+        
+        final int[] previousSlot = new int[n];   // slot of the same sequence in the saved state, -1 if it is new
+        for(int i = 0; i < n; i++){
+            previousSlot[i] = previous == null ? -1 : previous.slotOf(fingerprints[i]);
+        }
+        
+        final Integer[] byLength = new Integer[n];   // rank -> index of the sequence, the longest first
+        for(int i = 0; i < n; i++){
+            byLength[i] = i;
+        }
+        Arrays.sort(byLength, Comparator.comparingInt((Integer i) -> -seqs[i].length));
+        long[] lengthSum = new long[n + 1];  // prefix sums of the ranked lengths
+        for(int r = 0; r < n; r++){
+            lengthSum[r + 1] = lengthSum[r] + seqs[byLength[r]].length;
+        }
+        
+        int units = 0;
+        for(int q = 1; q < n && scoresFile == null; q++){
+            units += (q + UNIT - 1) / UNIT;
+        }
+        final int[] unitRow = new int[units];  // unit covers ranks (p, q): q = unitRow, p in [unitStart, min(unitStart + UNIT, q))
+        final int[] unitStart = new int[units];
+        long[] order = new long[units];    // (descending cost, unit), so that sorting puts the expensive units first
+        for(int q = 1, u = 0; q < n && scoresFile == null; q++){
+            for(int p = 0; p < q; p += UNIT, u++){
+                
+                unitRow[u] = q;
+                unitStart[u] = p;
+                float cost = (float) seqs[byLength[q]].length * (lengthSum[Math.min(p + UNIT, q)] - lengthSum[p]);
+                order[u] = ((long) (Integer.MAX_VALUE - Float.floatToIntBits(cost)) << 32) | u;
+            }
+        }
+        Arrays.sort(order);
+        
+        if(metrics != null){
+            
+            long work = 0;
+            for(int r = 0; r < n; r++){
+                work += (long) seqs[byLength[r]].length * lengthSum[r];    // pairs of rank r with the longer sequences
+            }
+            metrics.planPairs((long) n * (n - 1) / 2, work);
+        }
+        if(provider != null)
+            provider.prepare(seqs, parallelism);
+        
+        final AtomicInteger next = new AtomicInteger();
+        final long tiles = MappedDistanceMatrix.tiles(n);
+        Callable<Void> worker = scoresFile != null ? () -> {
+            
+            int t;
+            while(!cancelled && (t = next.getAndIncrement()) < tiles){
+                
+                int I = (int) ((Math.sqrt(8.0 * t + 1) - 1) / 2);  // tile t = I * (I + 1) / 2 + J, J <= I
+                while((long) I * (I + 1) / 2 > t)
+                    I--;
+                while((long) (I + 1) * (I + 2) / 2 <= t)
+                    I++;
+                int J = (int) (t - (long) I * (I + 1) / 2);
+                
+                for(int j = I * MappedDistanceMatrix.TILE; j < Math.min(n, (I + 1) * MappedDistanceMatrix.TILE); j++){
+                    for(int i = J * MappedDistanceMatrix.TILE; i < Math.min(j, (J + 1) * MappedDistanceMatrix.TILE); i++){
+                        result.set(i, j, scorePair(seqs, previousSlot, i, j, matrixFingerprint));
+                    }
+                }
+            }
+            return null;
+        } : () -> {
+            
+            int t;
+            while(!cancelled && (t = next.getAndIncrement()) < order.length){
+                
+                int u = (int) order[t];
+                int q = unitRow[u];
+                for(int p = unitStart[u]; p < Math.min(unitStart[u] + UNIT, q); p++){
+                    
+                    int i = Math.min(byLength[p], byLength[q]), j = Math.max(byLength[p], byLength[q]);
+                    result.set(i, j, scorePair(seqs, previousSlot, i, j, matrixFingerprint));
+                }
+            }
+            return null;
+        };
+        
+        runWorkers(worker, Math.min(parallelism, Math.max(scoresFile == null ? units : tiles, 1)), "Alignment of the sequences");
+        return result;
+    }
+    
+    /**
+     * Pool running the alignments of every call, null if each call creates its own.
+     */
+    private ForkJoinPool sharedPool = null;
+    
+    /**
+     * Set when the thread waiting for the workers is interrupted, the workers then stop after their current work unit.
+     */
+    private volatile boolean cancelled = false;
+    
+    /**
+     * Runs the alignments on the given pool instead of a new pool per call, e. g. a pool kept warm by a service for many clusterings. The pool is not shut down; the parallelism becomes the one of the pool.
+     * The aligners kept with the pool are used instead of ones of this clustering, so the workspaces of the pool threads stay warm from one clustering to the next.
+     * @param pool the pool, null to create a pool per call
+     * @param _aligners the aligners of the threads of the pool, null for aligners of this clustering
+     * @throws IllegalArgumentException if the aligners are for another weights matrix
+     */
+    
+    public void setPool(ForkJoinPool pool, Aligners _aligners){
+        
+        if(_aligners != null && _aligners.getMatrix() != matrix)
+            throw new IllegalArgumentException("The aligners of the pool use another weights matrix.");
+        sharedPool = pool;
+        if(pool != null)
+            parallelism = pool.getParallelism();
+        if(_aligners != null)
+            aligners = _aligners;
+    }
+    
+    /**
+     * Runs count copies of the worker on the pool and waits for them. The wait can be interrupted: the workers are then told to stop and the clustering is cancelled.
+     * @param task description of the work for the exceptions
+     * @throws CancellationException if the waiting thread was interrupted
+     */
+    
+    private void runWorkers(Callable<Void> worker, long count, String task){
+        
+        ForkJoinPool pool = sharedPool != null ? sharedPool : new ForkJoinPool(parallelism);
+        ArrayList<Future<Void>> futures = new ArrayList<>();
+        try {
+            for(int i = 0; i < count; i++){
+                futures.add(pool.submit(worker));
+            }
+            for(Future<Void> f : futures){
+                f.get();
+            }
+        } catch (InterruptedException ex) {
+            cancelled = true;
+            Thread.currentThread().interrupt();
+            throw cancellation(task, ex);
+        } catch (ExecutionException ex) {
+            cancelled = true;
+            throw new IllegalStateException(task + " failed.", ex.getCause());
+        } finally {
+            if(pool != sharedPool)
+                pool.shutdownNow();
+        }
+    }
+    
+    private static CancellationException cancellation(String task, InterruptedException cause){
+        
+        CancellationException ex = new CancellationException(task + " was interrupted.");
+        ex.initCause(cause);
+        return ex;
+    }
+    
+    /**
+     * Computes the score of the pair (i, j), i < j: given by the distance provider, reused from the earlier run, found in the cache, or aligned (and then cached), in this order.
+     * @param seqs encoded sequences
+     * @param previousSlot slot of every sequence in the earlier run, -1 if it is new
+     * @param matrixFingerprint fingerprint of the weights matrix, the key of the cache
+     * @return the score
+     * @throws IOException if the score cannot be written to the cache
+     */
+    
+    private double scorePair(byte[][] seqs, int[] previousSlot, int i, int j, long matrixFingerprint) throws IOException{
+        
+        double score = Double.NaN;
+        if(provider != null && !Double.isNaN(score = provider.score(i, j)))
+            providedPairs.increment();
+        else if(previousSlot[i] >= 0 && previousSlot[j] >= 0 && previousSlot[i] != previousSlot[j]){
+            
+            score = previous.score(previousSlot[i], previousSlot[j]);
+            reusedPairs.increment();
+        }
+        else if(cache != null){
+            
+            score = cache.get(fingerprints[i], fingerprints[j], matrixFingerprint);
+            if(!Double.isNaN(scoreCap))
+                score = Math.max(score, scoreCap);  // the cache holds exact scores only; a miss stays NaN
+        }
+        
+        if(Double.isNaN(score)){
+            
+            score = alignPair(seqs[i], seqs[j]);
+            boolean exact = !capped(score);
+            if(!matrix.isSymmetric()){
+                
+                double backward = alignPair(seqs[j], seqs[i]);
+                exact &= !capped(backward);
+                score = 0.5*(score + backward);
+            }
+            if(cache != null && exact)
+                cache.put(fingerprints[i], fingerprints[j], matrixFingerprint, score);  // the pair score is symmetric, so the order in the key does not matter
+        }
+        if(metrics != null)
+            metrics.pairDone((long) seqs[i].length * seqs[j].length);
+        return score;
+    }
     
     /**
      * Initializes all structures needed for computation.
      */
     public void initalizeClustering(){
         
-        activeNodeScores = new PriorityQueue<>();   // at the top of this structure is the best global alignment
-        scores = new HashMap<>();   // constant time lookup for the already computed scores
         tree = new HashMap<>(); // the phylogenetic tree
-        activeNodes = new ArrayList<>();    // nodes the are being aligned in activeNodeScores
+        mergeScores = new HashMap<>();
         
         for(Integer j : sequences.keySet()){
             
             tree.put(j, new Pair(-1, -1));  // initializing trivial clusters containing only the plain sequences (they dont habe any children)
         }
         
-        int nr = 0;
-        
-        for(Integer it1 : sequences.keySet()){
+        byte[][] seqs = prepareSlots();
+        expandCollapsed();
+        if(shardPlan == null)
+            scores = alignAllPairs(seqs); // global alignemnts of all pairs of the given sequences
+        else{
             
-            activeNodes.add(it1);   // adding all sequences from the fasta file to be processed
+            scores = newScoreMatrix(seqs.length);
+            try {
+                shardPlan.assemble(shardDirectory, scores);
+            } catch (IOException ex) {
+                throw new IllegalStateException("The blocks of the shard plan cannot be read.", ex);
+            }
+        }
+    }
+    
+    /**
+     * Marks the end of the parsed sequences in the queue of {@link phylogenetictree.HierarchicalClustering#readAndAlign}.
+     */
+    private static final byte[] END_OF_INPUT = new byte[0];
+    
+    /**
+     * Reads the sequences from the FASTA file and aligns them while the rest of the file is still being read, then initializes the clustering like {@link phylogenetictree.HierarchicalClustering#initalizeClustering}.
+     * The reading thread encodes every complete sequence and puts it into a bounded queue. A dispatcher thread takes it from there and schedules its pairs with all sequences read before it on the pool, in work units of up to {@link phylogenetictree.HierarchicalClustering#UNIT} pairs.
+     * The scheduled units are bounded too: when the alignments fall behind, the dispatcher waits for them, the queue fills up and the reading waits as well, so neither parsed sequences nor pending work pile up.
+     * Sequence i of the file gets slot i and the index i + 1 and every pair is aligned in the same order as by {@link phylogenetictree.HierarchicalClustering#alignAllPairs}, so the scores and the tree are the same.
+     * Earlier states, distance providers, the cache, collapsing, shards and the out-of-core matrix need all sequences before the alignment starts and cannot be combined with it.
+     * @param fileName name of the FASTA file, possibly gzipped
+     * @param verbose if true, the sequences are printed while they are read
+     * @param queueSize number of parsed sequences that may wait for the dispatcher
+     * @return the sequences read
+     * @throws IOException if error occured while reading the file
+     * @throws CancellationException if the thread was interrupted
+     */
+    
+    public SequenceArena readAndAlign(String fileName, boolean verbose, int queueSize) throws IOException{
+        
+        if(previous != null || provider != null || cache != null || !Double.isNaN(collapseIdentity) || shardPlan != null || scoresFile != null)
+            throw new IllegalStateException("The pipelined alignment needs all sequences in memory and aligned exactly.");
+        
+        final ArrayBlockingQueue<byte[]> parsed = new ArrayBlockingQueue<>(queueSize);
+        final ArrayList<byte[]> seqs = new ArrayList<>();     // filled by the dispatcher, read here after it has finished
+        final RowDistanceMatrix grown = new RowDistanceMatrix();  // grown by the dispatcher, filled by the units, read here after both have finished
+        final int maxUnits = 4 * parallelism;
+        final Semaphore units = new Semaphore(maxUnits);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final ForkJoinPool pool = sharedPool != null ? sharedPool : new ForkJoinPool(parallelism);
+        
+        Thread dispatcher = new Thread(() -> {
             
-            for(Integer it2 : sequences.keySet()){
-                
-                if(!it1.equals(it2)){
+            byte[][] known = new byte[16][];  // a unit keeps the array it was scheduled with, which holds all its sequences
+            long pairs = 0, work = 0, lengthSum = 0;
+            try {
+                for(int k = 0; ; k++){
                     
-                    String a = sequences.get(it1);
-                    String b = sequences.get(it2);
+                    byte[] sequence = parsed.take();
+                    if(sequence == END_OF_INPUT)
+                        break;
+                    if(k == known.length)
+                        known = Arrays.copyOf(known, 2 * k);
+                    known[k] = sequence;
+                    seqs.add(sequence);
+                    final double[] row = grown.addRow();
+                    if(metrics != null){
+                        
+                        pairs += k;
+                        work += sequence.length * lengthSum;
+                        lengthSum += sequence.length;
+                        metrics.planPairs(pairs, work);  // the pairs known so far
+                    }
                     
-                    SmithWaterman alignment = new SmithWaterman(a, b, weights); // global alignemnt of the given sequences
-                    alignment.align();
-                    activeNodeScores.add(new Pair(new Pair(it1, it2), alignment.getScore()));   // inserting the computed weights to be processed
-                    scores.put(new Pair(it1, it2), alignment.getScore());   // inserting the computed weights to the lookup table
+                    final byte[][] unitSeqs = known;
+                    final int q = k;
+                    for(int p = 0; p < k; p += UNIT){
+                        
+                        units.acquire();
+                        final int from = p;
+                        pool.execute(() -> {
+                            
+                            try {
+                                for(int j = from; j < Math.min(from + UNIT, q) && !cancelled; j++){
+                                    row[j] = pipelinedPair(unitSeqs[j], unitSeqs[q]);
+                                }
+                            } catch (Throwable ex) {
+                                failure.compareAndSet(null, ex);
+                                cancelled = true;
+                            } finally {
+                                units.release();
+                            }
+                        });
+                    }
                 }
+            } catch (InterruptedException ex) {
+                // the reading failed or was cancelled
             }
+        }, "dispatcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+        
+        SequenceArena arena;
+        boolean complete = false;
+        try {
+            arena = FastaReader.read(fileName, verbose, (reading, i) -> {
+                
+                if(failure.get() != null)
+                    throw new IllegalStateException("Alignment of the sequences failed.", failure.get());
+                try {
+                    parsed.put(reading.encode(i, matrix));    // a copy, the arena keeps changing while the file is read
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw cancellation("Reading of the sequences", ex);
+                }
+            });
+            parsed.put(END_OF_INPUT);
+            dispatcher.join();
+            units.acquire(maxUnits);    // all scheduled units have finished
+            complete = true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw cancellation("Alignment of the sequences", ex);
+        } finally {
+            if(!complete){
+                
+                cancelled = true;
+                dispatcher.interrupt();
+            }
+            if(pool != sharedPool)
+                pool.shutdownNow();
+        }
+        if(failure.get() != null)
+            throw new IllegalStateException("Alignment of the sequences failed.", failure.get());
+        
+        int n = seqs.size();
+        tree = new HashMap<>();
+        mergeScores = new HashMap<>();
+        nodes = new int[n];
+        fingerprints = new long[n];
+        scores = grown;
+        for(int k = 0; k < n; k++){
+            
+            sequences.put(k + 1, seqs.get(k));
+            tree.put(k + 1, new Pair(-1, -1));
+            nodes[k] = k + 1;
+            fingerprints[k] = ScoreCache.fingerprint(seqs.get(k));
         }
+        return arena;
+    }
+    
+    /**
+     * Computes the score of a pair of {@link phylogenetictree.HierarchicalClustering#readAndAlign}, a the one read first.
+     */
+    
+    private double pipelinedPair(byte[] a, byte[] b){
         
+        double score = alignPair(a, b);
+        if(!matrix.isSymmetric())
+            score = 0.5*(score + alignPair(b, a));
+        if(metrics != null)
+            metrics.pairDone((long) a.length * b.length);
+        return score;
     }
     
     /**
-     * left and right are merged to a virtual sequence.
-     * @param left index to the first node being clusterd with the second node. They both make a virtual node.
-     * @param right index to the second node being clustered with the first node. They both make a virtual node.
+     * @return an empty score matrix, on the heap or out of core
      */
     
-    private void cluster(Integer left, Integer right){
+    private DistanceMatrix newScoreMatrix(int n){
         
-            for(Integer i : activeNodes){
-                
-                if(!i.equals(left) && !i.equals(right)){    
+        try {
+            return scoresFile == null ? new ArrayDistanceMatrix(n) : new MappedDistanceMatrix(scoresFile, n);
+        } catch (IOException ex) {
+            throw new IllegalStateException("The out-of-core score matrix cannot be created.", ex);
+        }
+    }
+    
+    /**
+     * Assigns the sequences to the slots of the score matrix: fills {@link phylogenetictree.HierarchicalClustering#nodes} and {@link phylogenetictree.HierarchicalClustering#fingerprints}.
+     * When duplicates are collapsed, only the representatives get slots, each holding the last node merged into its group.
+     * @return the sequences in slot order
+     */
+    
+    private byte[][] prepareSlots(){
+        
+        Integer[] ids = sequences.keySet().toArray(new Integer[0]);
+        HashMap<Integer, Integer> group = new HashMap<>();
+        if(!Double.isNaN(collapseIdentity)){
+            
+            ids = collapse(ids);
+            for(int[] c : collapsed){
+                group.put(c[3], c[0]);
+            }
+        }
+        byte[][] seqs = new byte[ids.length][];
+        for(int i = 0; i < ids.length; i++){
+            seqs[i] = sequences.get(ids[i]);
+        }
+        
+        nodes = new int[ids.length];
+        fingerprints = new long[ids.length];
+        for(int i = 0; i < ids.length; i++){
+            
+            nodes[i] = group.getOrDefault(ids[i], ids[i]);
+            fingerprints[i] = ScoreCache.fingerprint(seqs[i]);
+        }
+        return seqs;
+    }
+    
+    /**
+     * Splits the all-pairs alignment of these sequences into blocks of about equal work and saves the plan.
+     * @param directory the shard directory, created if necessary
+     * @param blocks number of blocks
+     * @return the plan
+     * @throws IOException if the plan cannot be saved
+     */
+    
+    public ShardPlan planShards(String directory, int blocks) throws IOException{
+        
+        byte[][] seqs = prepareSlots();
+        ShardPlan plan = ShardPlan.create(seqs, ShardPlan.fingerprint(fingerprints, matrix.fingerprint(), scoringMode()), blocks);
+        plan.save(Paths.get(directory));
+        return plan;
+    }
+    
+    /**
+     * Computes one block of a shard plan with all threads and writes it to its block file. Scores are reused, provided and cached exactly as by {@link phylogenetictree.HierarchicalClustering#initalizeClustering}.
+     * Every work unit is written to the block file as soon as it is computed, so the block may hold any number of pairs.
+     * @param directory the shard directory holding the plan
+     * @param block number of the block
+     * @throws IOException if the plan cannot be read or the block cannot be written
+     * @throws IllegalArgumentException if the plan was made for other sequences, another weights matrix or another scoring mode, or there is no such block
+     */
+    
+    public void computeShard(String directory, int block) throws IOException{
+        
+        final byte[][] seqs = prepareSlots();
+        final long matrixFingerprint = matrix.fingerprint();
+        ShardPlan plan = ShardPlan.load(Paths.get(directory));
+        if(!plan.matches(ShardPlan.fingerprint(fingerprints, matrixFingerprint, scoringMode())))
+            throw new IllegalArgumentException("The shard plan in " + directory + " was made for another input or scoring mode.");
+        if(block < 0 || block >= plan.blocks())
+            throw new IllegalArgumentException("The shard plan has no block " + block + ".");
+        
+        final int[] previousSlot = new int[seqs.length];
+        for(int i = 0; i < seqs.length; i++){
+            previousSlot[i] = previous == null ? -1 : previous.slotOf(fingerprints[i]);
+        }
+        if(provider != null)
+            provider.prepare(seqs, parallelism);
+        
+        final long from = plan.from(block), to = plan.to(block);
+        if(metrics != null){
+            
+            long work = 0;
+            int i = ShardPlan.row(from), j = (int) (from - DistanceMatrix.index(i, 0));
+            for(long p = from; p < to; p++){
                 
-                    double newScore = 0.5*(scores.get(new Pair(left, i)) + scores.get(new Pair(right, i)));
-                    scores.put(new Pair(i, tree.size() + 1), newScore);  // insert virutal node with the new weights between it and i
-                    scores.put(new Pair(tree.size() + 1, i), newScore);
+                work += (long) seqs[i].length * seqs[j].length;
+                if(++j == i){
                     
-                    activeNodeScores.add(new Pair(new Pair(i, tree.size() + 1), newScore));
-                    activeNodeScores.add(new Pair(new Pair(tree.size() + 1, i), newScore));
-
-                    activeNodeScores.remove(new Pair(new Pair(i, left), scores.get(new Pair(i, left))));    // removes old (i, left) node
-                    activeNodeScores.remove(new Pair(new Pair(left, i), scores.get(new Pair(left, i))));    // removes old (left, i) node
-                    activeNodeScores.remove(new Pair(new Pair(i, right), scores.get(new Pair(i, right))));    // removes old (i, right) node
-                    activeNodeScores.remove(new Pair(new Pair(right, i), scores.get(new Pair(right, i))));    // removes old (right, i) node
+                    i++;
+                    j = 0;
                 }
             }
-            activeNodes.add(tree.size() + 1);
-            tree.put(tree.size() + 1, new Pair(left, right));
-            activeNodes.remove(left);
-            activeNodes.remove(right);
+            metrics.planPairs(to - from, work);
+        }
+        
+        try (ShardPlan.BlockWriter out = plan.openBlock(Paths.get(directory), block)){
+            
+            final AtomicLong next = new AtomicLong(from);
+            Callable<Void> worker = () -> {
+                
+                double[] unit = new double[UNIT];
+                long start;
+                while(!cancelled && (start = next.getAndAdd(UNIT)) < to){
+                    
+                    int i = ShardPlan.row(start), j = (int) (start - DistanceMatrix.index(i, 0));
+                    int count = (int) (Math.min(start + UNIT, to) - start);
+                    for(int p = 0; p < count; p++){
+                        
+                        unit[p] = scorePair(seqs, previousSlot, j, i, matrixFingerprint);
+                        if(++j == i){
+                            
+                            i++;
+                            j = 0;
+                        }
+                    }
+                    out.write(start, unit, count);
+                }
+                return null;
+            };
+            
+            runWorkers(worker, parallelism, "Alignment of the block");
+            if(cancelled)
+                throw new CancellationException("Alignment of the block was cancelled.");   // an incomplete block is never committed
+            out.commit();
+        }
     }
     
     /**
-     * Computes the clusters.
+     * Shard plan whose blocks are the scores, null if the pairs are aligned here.
+     */
+    private ShardPlan shardPlan = null;
+    private Path shardDirectory = null;
+    
+    /**
+     * Makes {@link phylogenetictree.HierarchicalClustering#initalizeClustering} take the scores from the blocks of a shard plan instead of aligning.
+     * @param directory the shard directory holding the plan and all blocks
+     * @return numbers of the blocks that are missing (they have to be computed before), empty if the scores are complete
+     * @throws IOException if the plan cannot be read
+     * @throws IllegalArgumentException if the plan was made for other sequences, another weights matrix or another scoring mode
+     */
+    
+    public List<Integer> setShards(String directory) throws IOException{
+        
+        prepareSlots();
+        ShardPlan plan = ShardPlan.load(Paths.get(directory));
+        if(!plan.matches(ShardPlan.fingerprint(fingerprints, matrix.fingerprint(), scoringMode())))
+            throw new IllegalArgumentException("The shard plan in " + directory + " was made for another input or scoring mode.");
+        
+        shardPlan = plan;
+        shardDirectory = Paths.get(directory);
+        return plan.missingBlocks(shardDirectory);
+    }
+    
+    /**
+     * Computes the clusters. The pair with the biggest score is merged to a virtual node whose scores to the other nodes are given by the {@link phylogenetictree.Linkage} (by default 0.5*(score(left, i) + score(right, i))), until two nodes are left.
+     * See {@link phylogenetictree.ClusteringEngine} for the complexity and the tie-breaking rules. The single linkage is computed as a spanning tree by {@link phylogenetictree.SingleLinkageTree} and leaves the scores unchanged.
      */
     public void runClustering(){
        
-        while(activeNodes.size() > 2){
+        if(linkage == Linkage.SINGLE){
             
-            Pair< Pair<Integer,Integer>, Double> e = activeNodeScores.remove(); // removes (a, b) -> weights of a and b
-            activeNodeScores.remove(); // removes (b, a) -> weights of a and b
-            Integer left = e.getLeft().getLeft(), right = e.getLeft().getRight();
+            SingleLinkageTree engine = new SingleLinkageTree(scores, nodes);
+            engine.setMetrics(metrics);
+            ForkJoinPool pool = sharedPool != null ? sharedPool : parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+            try {
+                engine.run(tree, mergeScores, 2, pool);
+            } finally {
+                if(pool != null && pool != sharedPool)
+                    pool.shutdownNow();
+            }
+            rootScore = engine.lastScore();
+            return;
+        }
+        ClusteringEngine engine = new ClusteringEngine(scores, nodes, slotSizes(), linkage);
+        engine.setMetrics(metrics);
+        engine.run(tree, mergeScores, 2);
+        rootScore = engine.lastScore();
+    }
+    
+    /**
+     * @return number of sequences below the node of every slot, more than one for collapsed duplicates
+     */
+    
+    private int[] slotSizes(){
+        
+        int[] leaves = new int[tree.size() + 1];   // the children of a node have smaller numbers
+        for(int node = 1; node < leaves.length; node++){
+            
+            Pair<Integer, Integer> children = tree.get(node);
+            leaves[node] = children.getLeft() == -1 ? 1 : leaves[children.getLeft()] + leaves[children.getRight()];
+        }
+        int[] sizes = new int[nodes.length];
+        for(int s = 0; s < nodes.length; s++){
+            sizes[s] = leaves[nodes[s]];
+        }
+        return sizes;
+    }
+    
+    /**
+     * Score between the two nodes left by the clustering, NaN before it.
+     */
+    private double rootScore = Double.NaN;
+    
+    /**
+     * @return score between the two nodes left by the clustering (they are joined under the root of the written tree), NaN if fewer nodes are left
+     */
+    
+    public double getRootScore(){
+        
+        return rootScore;
+    }
+    
+    /**
+     * The best score any pair can have, where the heights of the tree start: the biggest score of aligning a sequence with itself (the sum of the weights of matching its letters), at least the biggest merge score.
+     * @return the score
+     */
+    
+    public double getTopScore(){
+        
+        double top = Double.NEGATIVE_INFINITY;
+        for(byte[] sequence : sequences.values()){
             
-            cluster(left, right);
+            double self = 0;
+            for(byte c : sequence){
+                self += matrix.score(c, c);
+            }
+            top = Math.max(top, self);
         }
+        for(double score : mergeScores.values()){
+            top = Math.max(top, score);
+        }
+        if(!Double.isNaN(rootScore))
+            top = Math.max(top, rootScore);
+        return top;
+    }
+    
+    /**
+     * Creates a writer of the tree with the given labels of the sequences.
+     * @param labels label of a sequence by its number, null to use the numbers
+     * @return the writer
+     */
+    
+    public TreeWriter getTreeWriter(IntFunction<String> labels){
+        
+        return new TreeWriter(tree, mergeScores, rootScore, getTopScore(), labels);
     }
     
     public HashMap<Integer, Pair<Integer, Integer>> getTree(){
@@ -135,21 +1272,29 @@ public class HierarchicalClustering {
         return tree;
     }
     
-    void printTree(Integer index, int n) {
+    /**
+     * @return score of the merged pair for every virtual node
+     */
+    
+    public HashMap<Integer, Double> getMergeScores(){
         
-        Integer left = tree.get(index).getLeft();
-        Integer right = tree.get(index).getRight();
+        return mergeScores;
+    }
+    
+    /**
+     * Prints every virtual node below the given one as "node -> (left, right)" to the standard output, indented by its depth. Uses an explicit stack and one buffer, see {@link phylogenetictree.TreeWriter}.
+     * @param index the first node
+     * @param n indentation of the first node
+     */
+    
+    void printTree(Integer index, int n) {
         
-            
-        if(left != -1 && right != -1){
-            for(int i = 0; i < n; i++){
-                System.out.printf(" ");
-            }
-            System.out.printf("%d -> (%d, %d)\n", index, left, right);
+        try {
+            Writer out = TreeWriter.open(System.out);
+            new TreeWriter(tree, mergeScores, rootScore, 0, null).writeMerges(out, index, n);
+            out.flush();
+        } catch (IOException ex) {
+            throw new IllegalStateException("The tree cannot be printed.", ex);
         }
-        if(left != -1)
-           printTree(left, n + 1);
-        if(right != -1)
-            printTree(right,n + 1);
     }
 }
\ No newline at end of file
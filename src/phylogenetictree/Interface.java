@@ -26,11 +26,14 @@ public class Interface {
     public String alphabet = null;
     
     /**
-     * The collection contatining sequences to cluster.
-     * Integer: index of the sequence
-     * String: the sequence
+     * The sequences to cluster, stored compactly. Sequence no. i (as printed) is arena.get(i - 1).
      */
-    HashMap<Integer, String> sequences;
+    SequenceArena arena;
+    
+    /**
+     * If true, the sequences are printed while they are read.
+     */
+    public boolean verbose = false;
     
     /**
      * A HashMap representing the weights matrix.
@@ -39,58 +42,33 @@ public class Interface {
     public HashMap<Character, HashMap<Character, Double>> weights;
     
     /**
-     * Parses the given .fast file. Initializes first and second String objects that represent DNA sequences to align.
-     * @param fileName the name of the file in FASTA format containing two sequences to align
+     * The weights matrix compiled to flat tables, built once by {@link phylogenetictree.Interface#getMatrix}. This is the form used by the alignment.
+     */
+    public ScoringMatrix matrix;
+    
+    /**
+     * Parses the given .fast file with {@link phylogenetictree.FastaReader} into {@link phylogenetictree.Interface#arena}. The file may be gzipped.
+     * @param fileName the name of the file in FASTA format containing the sequences to cluster
      * @throws IOException if error occured while reading the file
      */
     
     public void getSequences(String fileName) throws IOException{
-        BufferedReader br = null;
-        InputStream in = null;
-        InputStreamReader s = null;
-        String text = null;
         
-        in = new FileInputStream(fileName);
-        s = new InputStreamReader(in);
-        br = new BufferedReader(s);
-        StringBuilder sb;
-        String line = null;
-        sequences = new HashMap<>();
-        
-        /* ------ parse the .fasta file ------ */
-        
-        int counter = 0;
-        
-        line = br.readLine();
+        arena = FastaReader.read(fileName, verbose);
+    }
+    
+    /**
+     * Builds a collection of Strings of the read sequences (the indices start with 1). Meant for small inputs only, the clustering works directly on {@link phylogenetictree.Interface#arena}.
+     * @return index of the sequence -> the sequence
+     */
+    
+    public HashMap<Integer, String> getSequenceMap(){
         
-        while(line != null){
-            
-            sb = new StringBuilder();
-            
-            while(line.charAt(0) == '>'){
-                
-                sb.append(line);
-                sb.append("\n");
-                line = br.readLine();
-            }
-            
-            System.out.printf("FASTA description of the sequence no. %d: \n%s", ++counter, sb.toString());
-            
-            sb = new StringBuilder().append(line);
-
-            while((line = br.readLine()) != null && line.charAt(0) != '>'){
-
-                sb = sb.append(line);
-            }
-            
-            System.out.printf("sequence no. %d: %s\n\n", counter, sb.toString());
-            
-            sequences.put(counter, sb.toString());
+        HashMap<Integer, String> sequences = new HashMap<>();
+        for(int i = 0; i < arena.size(); i++){
+            sequences.put(i + 1, arena.getString(i));
         }
-        
-        System.out.printf("All sequences with numbers greater than %d are clusters.\n", sequences.size());
-        
-        /* ------++++++++++++++++++++++++++++++++------ */
+        return sequences;
     }
     
     /**
@@ -147,6 +125,12 @@ public class Interface {
                 j++;
             }
         }
+        
+        try {
+            matrix = new ScoringMatrix(weights);
+        } catch (IllegalArgumentException ex) {
+            throw new IOException("Wrong matrix.txt format. " + ex.getMessage() + "\n");
+        }
         return;
         
     }
@@ -0,0 +1,90 @@
+package phylogenetictree;
+
+import java.util.Locale;
+
+/**
+ * How the score between a virtual node and every other node is computed when two nodes a and b are merged, as a Lance-Williams update from the scores before the merge.
+ *
+ * The clustering works on scores (the bigger, the closer), so the updates are the distance formulas applied to scores: the nearest pair of single linkage is the one with the biggest score, the farthest pair of complete linkage the one with the smallest. Since the updates are affine, a score s behaves like the distance c - s for any constant c.
+ * n is the number of sequences below a node.
+ */
+public enum Linkage {
+
+    /**
+     * max(s(a, i), s(b, i)), the closest pair of sequences. See {@link phylogenetictree.SingleLinkageTree} for the dedicated spanning tree path.
+     */
+    SINGLE {
+        @Override
+        double update(double sa, double sb, double sab, int na, int nb, int ni){
+
+            return Math.max(sa, sb);
+        }
+    },
+
+    /**
+     * min(s(a, i), s(b, i)), the farthest pair of sequences.
+     */
+    COMPLETE {
+        @Override
+        double update(double sa, double sb, double sab, int na, int nb, int ni){
+
+            return Math.min(sa, sb);
+        }
+    },
+
+    /**
+     * (s(a, i) + s(b, i)) / 2 (WPGMA), the original merge of the program.
+     */
+    WEIGHTED {
+        @Override
+        double update(double sa, double sb, double sab, int na, int nb, int ni){
+
+            return 0.5*(sa + sb);
+        }
+    },
+
+    /**
+     * (na s(a, i) + nb s(b, i)) / (na + nb), the mean score of all pairs of sequences.
+     */
+    UPGMA {
+        @Override
+        double update(double sa, double sb, double sab, int na, int nb, int ni){
+
+            return (na*sa + nb*sb) / (na + nb);
+        }
+    },
+
+    /**
+     * ((na + ni) s(a, i) + (nb + ni) s(b, i) - ni s(a, b)) / (na + nb + ni), the increase of the within-cluster variance when the scores are negated squared distances.
+     */
+    WARD {
+        @Override
+        double update(double sa, double sb, double sab, int na, int nb, int ni){
+
+            return ((na + ni)*sa + (nb + ni)*sb - ni*sab) / (na + nb + ni);
+        }
+    };
+
+    /**
+     * @param sa score between a and i
+     * @param sb score between b and i
+     * @param sab score between a and b
+     * @param na number of sequences below a
+     * @param nb number of sequences below b
+     * @param ni number of sequences below i
+     * @return score between the merged node and i
+     */
+
+    abstract double update(double sa, double sb, double sab, int na, int nb, int ni);
+
+    /**
+     * @param name the name in any case, e. g. "upgma"
+     * @return the linkage
+     * @throws IllegalArgumentException if there is no linkage of this name
+     */
+
+    public static Linkage parse(String name){
+
+        return valueOf(name.toUpperCase(Locale.ROOT));
+    }
+}
@@ -0,0 +1,99 @@
+package phylogenetictree;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Out-of-core {@link phylogenetictree.DistanceMatrix}: the scores are floats in a memory-mapped scratch file, so the heap holds nothing of the matrix and the operating system keeps as many pages resident as the memory allows.
+ *
+ * The lower triangle is cut into square tiles of {@link phylogenetictree.MappedDistanceMatrix#TILE} x TILE scores (16 kB, four pages), stored one after another: tile (I, J), I >= J, is the tile number I * (I + 1) / 2 + J and holds its scores row by row.
+ * A row of the matrix therefore crosses each tile in one short contiguous run (left of the diagonal) or in a run of a few pages (below it), and the pairs of one tile are filled together by the alignment phase ({@link phylogenetictree.HierarchicalClustering#alignAllPairs} hands out whole tiles), so every page is written once.
+ *
+ * The file is mapped in segments of 1 GB, which always contain whole tiles. It is deleted when the mapping is created (where the operating system allows), so it disappears when the program ends.
+ */
+public class MappedDistanceMatrix implements DistanceMatrix {
+
+    /**
+     * Rows and columns of a tile.
+     */
+    static final int TILE = 64;
+
+    private static final int SEGMENT_BITS = 30;
+    private static final long SEGMENT_MASK = (1L << SEGMENT_BITS) - 1;
+
+    private final int size;
+
+    private final MappedByteBuffer[] segments;
+
+    /**
+     * Creates a matrix filled with zeros. The file is created sparse, so only the pages that are written take disk space.
+     * @param file name of the scratch file, it is overwritten
+     * @param _size number of rows (and columns)
+     * @throws IOException if the file cannot be created or mapped
+     */
+
+    MappedDistanceMatrix(Path file, int _size) throws IOException{
+
+        size = _size;
+        long bytes = tiles(size) * TILE * TILE * Float.BYTES;
+
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")){
+
+            raf.setLength(0);
+            raf.setLength(bytes);
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE)){
+
+            segments = new MappedByteBuffer[(int) ((bytes + SEGMENT_MASK) >> SEGMENT_BITS)];
+            for(int s = 0; s < segments.length; s++){
+
+                long position = (long) s << SEGMENT_BITS;
+                segments[s] = channel.map(FileChannel.MapMode.READ_WRITE, position, Math.min(SEGMENT_MASK + 1, bytes - position));
+            }
+        }   // the mappings stay valid after the channel is closed
+    }
+
+    /**
+     * @return number of tiles of the lower triangle of a matrix of the given size
+     */
+
+    static long tiles(int size){
+
+        long rows = (size + TILE - 1) / TILE;
+        return rows * (rows + 1) / 2;
+    }
+
+    /**
+     * @return byte offset of the pair (i, j), i > j, in the file
+     */
+
+    private static long offset(int i, int j){
+
+        long I = i / TILE, J = j / TILE;
+        return ((I * (I + 1) / 2 + J) * TILE * TILE + (i % TILE) * TILE + j % TILE) * Float.BYTES;
+    }
+
+    @Override
+    public double get(int i, int j){
+
+        long p = i > j ? offset(i, j) : offset(j, i);
+        return segments[(int) (p >>> SEGMENT_BITS)].getFloat((int) (p & SEGMENT_MASK));
+    }
+
+    @Override
+    public void set(int i, int j, double value){
+
+        long p = i > j ? offset(i, j) : offset(j, i);
+        segments[(int) (p >>> SEGMENT_BITS)].putFloat((int) (p & SEGMENT_MASK), (float) value);
+    }
+
+    @Override
+    public int size(){
+
+        return size;
+    }
+}
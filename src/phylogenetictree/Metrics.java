@@ -0,0 +1,256 @@
+package phylogenetictree;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Progress and performance counters of one run: wall and CPU time of every phase, dynamic programming cells per second, alignments done and remaining with an estimated time to finish, active nodes and merges per second of the merge loop, peak heap.
+ *
+ * The counters are updated once per pair and once per merge (never inside the alignment loops) through {@link java.util.concurrent.atomic.LongAdder}s, so the threads do not contend for them.
+ * Instrumentation is off unless a Metrics object is given to {@link phylogenetictree.HierarchicalClustering#setMetrics}; without it the hot paths only test a null field.
+ * A daemon thread can print a progress line to stderr periodically, and a JSON report is written at the end.
+ */
+public class Metrics {
+
+    public enum Phase {
+        PARSE, ALIGNMENT, MERGE, OUTPUT;
+
+        String label(){
+
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private final long[] wall = new long[Phase.values().length], cpu = new long[Phase.values().length];
+    private final long start = System.nanoTime();
+
+    private volatile Phase phase = null;
+    private long phaseWall, phaseCpu;    // when the current phase started
+
+    /**
+     * Pairs of the alignment phase and their work (the product of both lengths), planned and done.
+     */
+    private volatile long plannedPairs = 0, plannedWork = 0;
+    private final LongAdder pairs = new LongAdder(), work = new LongAdder();
+
+    /**
+     * Dynamic programming cells filled.
+     */
+    private final LongAdder cells = new LongAdder();
+
+    private final LongAdder merges = new LongAdder();
+    private volatile int activeNodes = 0;
+
+    private ScheduledExecutorService reporter = null;
+
+    /**
+     * Values at the previous progress line, for the rates over the last interval.
+     */
+    private long lastTime = start, lastCells = 0, lastMerges = 0;
+
+    /**
+     * Ends the current phase (if any) and starts the given one.
+     * @param next the phase
+     */
+
+    public synchronized void startPhase(Phase next){
+
+        endPhase();
+        phase = next;
+        phaseWall = System.nanoTime();
+        phaseCpu = processCpuTime();
+    }
+
+    /**
+     * Ends the current phase and adds its times.
+     */
+
+    public synchronized void endPhase(){
+
+        if(phase == null)
+            return;
+        wall[phase.ordinal()] += System.nanoTime() - phaseWall;
+        cpu[phase.ordinal()] += processCpuTime() - phaseCpu;
+        phase = null;
+    }
+
+    /**
+     * Announces the pairs of the alignment phase.
+     * @param _pairs number of pairs
+     * @param _work sum of the products of the lengths of the pairs
+     */
+
+    void planPairs(long _pairs, long _work){
+
+        plannedPairs = _pairs;
+        plannedWork = _work;
+    }
+
+    /**
+     * Records a finished pair, whether it was aligned or its score was found elsewhere.
+     * @param pairWork product of the lengths of the pair
+     */
+
+    void pairDone(long pairWork){
+
+        pairs.increment();
+        work.add(pairWork);
+    }
+
+    /**
+     * Records cells filled by an alignment.
+     */
+
+    void cellsDone(long count){
+
+        cells.add(count);
+    }
+
+    /**
+     * Records a merge.
+     * @param active number of active nodes after it
+     */
+
+    void merged(int active){
+
+        merges.increment();
+        activeNodes = active;
+    }
+
+    /**
+     * Starts printing a progress line every interval seconds to the given stream, from a daemon thread.
+     * @param seconds interval
+     * @param out the stream, usually System.err
+     */
+
+    public synchronized void startProgress(int seconds, PrintStream out){
+
+        reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+
+            Thread t = new Thread(r, "progress");
+            t.setDaemon(true);
+            return t;
+        });
+        reporter.scheduleAtFixedRate(() -> out.println(progressLine()), seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops the progress lines and ends the current phase.
+     */
+
+    public synchronized void stop(){
+
+        if(reporter != null)
+            reporter.shutdownNow();
+        reporter = null;
+        endPhase();
+    }
+
+    /**
+     * @return one line with the current phase and its progress, rates over the time since the previous line
+     */
+
+    public synchronized String progressLine(){
+
+        long now = System.nanoTime(), c = cells.sum(), m = merges.sum();
+        double interval = Math.max(now - lastTime, 1) / 1e9;
+        StringBuilder line = new StringBuilder(String.format(Locale.ROOT, "[%.0fs] ", (now - start) / 1e9));
+        Phase current = phase;
+        line.append(current == null ? "idle" : current.label());
+
+        if(current == Phase.ALIGNMENT){
+
+            long done = pairs.sum(), total = plannedPairs;
+            double fraction = plannedWork == 0 ? 0 : (double) work.sum() / plannedWork;
+            double elapsed = (now - phaseWall) / 1e9;
+            line.append(String.format(Locale.ROOT, ": %d/%d pairs (%.1f%%), %d remaining, %.3f GCUPS", done, total, 100 * fraction, total - done, (c - lastCells) / interval / 1e9));
+            if(fraction > 0)
+                line.append(String.format(Locale.ROOT, ", ETA %.0fs", elapsed * (1 - fraction) / fraction));
+        }
+        else if(current == Phase.MERGE)
+            line.append(String.format(Locale.ROOT, ": %d active nodes, %d merges, %.0f merges/s", activeNodes, m, (m - lastMerges) / interval));
+
+        line.append(String.format(Locale.ROOT, ", heap %d MB", usedHeap() >> 20));
+        lastTime = now;
+        lastCells = c;
+        lastMerges = m;
+        return line.toString();
+    }
+
+    /**
+     * Writes the final report.
+     * @param fileName name of the JSON file
+     * @throws IOException if the file cannot be written
+     */
+
+    public void writeReport(String fileName) throws IOException{
+
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(fileName), StandardCharsets.UTF_8))){
+            out.print(toJson());
+        }
+    }
+
+    /**
+     * @return the report: times of the phases in seconds, counters and rates
+     */
+
+    public synchronized String toJson(){
+
+        StringBuilder json = new StringBuilder("{\n  \"phases\": {");
+        for(Phase p : Phase.values()){
+            json.append(String.format(Locale.ROOT, "%s\n    \"%s\": {\"wallSeconds\": %.3f, \"cpuSeconds\": %.3f}", p.ordinal() == 0 ? "" : ",", p.label(), wall[p.ordinal()] / 1e9, cpu[p.ordinal()] / 1e9));
+        }
+        double alignment = wall[Phase.ALIGNMENT.ordinal()] / 1e9, merge = wall[Phase.MERGE.ordinal()] / 1e9;
+        json.append("\n  },\n");
+        json.append(String.format(Locale.ROOT, "  \"wallSeconds\": %.3f,\n", (System.nanoTime() - start) / 1e9));
+        json.append(String.format(Locale.ROOT, "  \"pairs\": %d,\n  \"plannedPairs\": %d,\n", pairs.sum(), plannedPairs));
+        json.append(String.format(Locale.ROOT, "  \"cells\": %d,\n  \"cellsPerSecond\": %.0f,\n", cells.sum(), alignment > 0 ? cells.sum() / alignment : 0.0));
+        json.append(String.format(Locale.ROOT, "  \"merges\": %d,\n  \"mergesPerSecond\": %.0f,\n", merges.sum(), merge > 0 ? merges.sum() / merge : 0.0));
+        json.append(String.format(Locale.ROOT, "  \"peakHeapBytes\": %d\n}\n", peakHeap()));
+        return json.toString();
+    }
+
+    /**
+     * @return CPU time of the whole process in nanoseconds, 0 if the JVM does not report it
+     */
+
+    private static long processCpuTime(){
+
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if(os instanceof com.sun.management.OperatingSystemMXBean)
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        return 0;
+    }
+
+    private static long usedHeap(){
+
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * @return sum of the peak usages of the heap memory pools
+     */
+
+    private static long peakHeap(){
+
+        long peak = 0;
+        for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()){
+            if(pool.getType() == MemoryType.HEAP)
+                peak += pool.getPeakUsage().getUsed();
+        }
+        return peak;
+    }
+}
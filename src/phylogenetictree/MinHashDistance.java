@@ -0,0 +1,162 @@
+package phylogenetictree;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Alignment-free scores from MinHash sketches of the k-mer sets of the sequences.
+ *
+ * The sketch of a sequence is the set of the s smallest hash values of its k-mers. The Jaccard index J of two k-mer sets is estimated from the s smallest values of the union of both sketches, and turned into the Mash distance D = -ln(2J / (1 + J)) / k (capped at 1). The score of the pair is -D.
+ * Sketching is linear in the length of a sequence and comparing two sketches takes O(s), so all pairs of hundreds of thousands of sequences can be scored. The clustering still keeps the scores of all pairs, so beyond 65536 sequences the matrix must be the out-of-core one ({@link phylogenetictree.HierarchicalClustering#setOutOfCore}).
+ *
+ * In the hybrid mode only the pairs with D above the threshold are scored from the sketches, the closer ones are aligned exactly. A far pair then gets the score of aligning every letter with a blank, which is a lower bound of its alignment score, so all scores stay on the alignment scale.
+ * The scores are approximate either way: the {@link phylogenetictree.MinHashDistance#mode} with k, s and the threshold is written into saved states, so they are only reused by runs with the same parameters.
+ */
+public class MinHashDistance implements DistanceProvider {
+
+    private final int k, sketchSize;
+
+    /**
+     * Pairs with a distance not above it are aligned exactly, NaN if the scores come from the sketches only.
+     */
+    private final double threshold;
+
+    private final ScoringMatrix matrix;
+
+    private long[][] sketches;
+
+    /**
+     * Score of aligning the whole sequence with blanks.
+     */
+    private double[] allBlanks;
+
+    /**
+     * @param _k length of the k-mers
+     * @param _sketchSize number of hash values kept per sequence
+     * @param _threshold the hybrid mode threshold of the Mash distance, NaN for scores from the sketches only
+     * @param _matrix weights used for the lower bounds of far pairs in the hybrid mode
+     */
+
+    public MinHashDistance(int _k, int _sketchSize, double _threshold, ScoringMatrix _matrix){
+
+        if(_k < 1 || _sketchSize < 1)
+            throw new IllegalArgumentException("k-mer length and sketch size must be positive.");
+        k = _k;
+        sketchSize = _sketchSize;
+        threshold = _threshold;
+        matrix = _matrix;
+    }
+
+    @Override
+    public String mode(){
+
+        return "minhash k=" + k + " sketch=" + sketchSize + (Double.isNaN(threshold) ? "" : " hybrid=" + threshold);
+    }
+
+    @Override
+    public void prepare(byte[][] sequences, int parallelism){
+
+        sketches = new long[sequences.length][];
+        allBlanks = new double[sequences.length];
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.submit(() -> IntStream.range(0, sequences.length).parallel().forEach(i -> {
+
+                sketches[i] = sketch(sequences[i]);
+                for(byte c : sequences[i]){
+                    allBlanks[i] += matrix.gap(c);
+                }
+            })).get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Sketching was interrupted.", ex);
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException("Sketching failed.", ex.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Computes the bottom-s sketch of the sequence.
+     * @param sequence encoded sequence
+     * @return the distinct smallest k-mer hash values, sorted
+     */
+
+    long[] sketch(byte[] sequence){
+
+        if(sequence.length < k)
+            return new long[0];
+
+        long[] hashes = new long[sequence.length - k + 1];
+        long power = 1;    // 31^k, to remove the letter leaving the window
+        for(int i = 0; i < k; i++){
+            power *= 31;
+        }
+        long rolling = 0;
+        for(int i = 0; i < sequence.length; i++){
+
+            rolling = rolling * 31 + sequence[i] + 1;
+            if(i >= k)
+                rolling -= power * (sequence[i - k] + 1);
+            if(i >= k - 1)
+                hashes[i - k + 1] = ScoreCache.mix(rolling);
+        }
+        Arrays.sort(hashes);
+
+        long[] sketch = new long[Math.min(sketchSize, hashes.length)];
+        int size = 0;
+        for(int i = 0; i < hashes.length && size < sketch.length; i++){
+            if(i == 0 || hashes[i] != hashes[i - 1])
+                sketch[size++] = hashes[i];
+        }
+        return Arrays.copyOf(sketch, size);
+    }
+
+    /**
+     * @return the Mash distance of the sequences i and j, in [0, 1]
+     */
+
+    public double distance(int i, int j){
+
+        long[] a = sketches[i], b = sketches[j];
+        if(a.length == 0 || b.length == 0)
+            return a.length == b.length ? 0 : 1;
+
+        int shared = 0, union = 0, p = 0, q = 0;
+        while(union < sketchSize && p < a.length && q < b.length){  // walk the smallest values of the union
+
+            if(a[p] == b[q]){
+
+                shared++;
+                p++;
+                q++;
+            }
+            else if(a[p] < b[q])
+                p++;
+            else
+                q++;
+            union++;
+        }
+        union += Math.min(sketchSize - union, a.length - p + b.length - q);
+
+        double jaccard = (double) shared / union;
+        if(jaccard == 0)
+            return 1;
+        return Math.min(1, -Math.log(2 * jaccard / (1 + jaccard)) / k);
+    }
+
+    @Override
+    public double score(int i, int j){
+
+        double distance = distance(i, j);
+        if(Double.isNaN(threshold))
+            return -distance;
+        if(distance <= threshold)
+            return Double.NaN;  // close enough to be aligned exactly
+        return allBlanks[i] + allBlanks[j];
+    }
+}
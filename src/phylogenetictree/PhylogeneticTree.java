@@ -1,16 +1,47 @@
 package phylogenetictree;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Main class. Handles input and calculates hierarchcial clustering.
  * 
- * Calling convention: PhylogeneticTree sequences.fasta matrix.txt
+ * Calling convention: PhylogeneticTree [-v] [-t threads] [-b band [-B maxBand] | -e threshold] [-c cache [-C cacheSize]] [-P queue] [-i oldState] [-s state] [-k k [-z sketchSize] [-H maxDistance]] [-d | -D identity] [-l linkage] [-m report.json] [-p seconds] [-a alignments.txt] [-N tree.nwk] [-J tree.json] [-o scores.tmp] [-S shards [-n blocks | -w block]] sequences.fasta matrix.txt
+ *   or: PhylogeneticTree -M inputs -O output [-j jobs] [-t threads] [-b band [-B maxBand] | -e threshold] [-d | -D identity] [-l linkage] matrix.txt
+ *   or: PhylogeneticTree -L port [-j jobs] [-q queue] [-t threads] [-b band [-B maxBand] | -e threshold] [-d | -D identity] [-l linkage] matrix.txt
  *  where:
- *   sequences.fasta - sequences to cluster,
- *   matrix.txt - cost matrix of indels/mismatches to the alphabet that sequences use.
+ *   sequences.fasta - sequences to cluster (may be gzipped),
+ *   -v - print the sequences while they are read,
+ *   matrix.txt - cost matrix of indels/mismatches to the alphabet that sequences use,
+ *   threads - number of threads aligning the sequences (default: number of processors),
+ *   band - initial band width of the banded alignment (default: the whole table is filled), the band is doubled until the score is exact, but not beyond maxBand,
+ *   queue - pipelined mode: the alignment starts while the file is still being read, every sequence is aligned with the ones before it as soon as it is complete; at most this many read sequences wait for the alignment, then the reading waits (not with -c, -i, -k, -d, -D, -o, -S),
+ *   threshold - bounded alignment: pairs whose score cannot reach the threshold are abandoned early and get the threshold as their score (not with -i, -s, -k, -S),
+ *   cache - file of the persistent pairwise score cache, cacheSize - the maximal number of scores kept in it (default 4194304),
+ *   oldState - saved state of an earlier run: only pairs with sequences that are not in it are aligned, the tree is the same as without it,
+ *   state - file the state of this run is saved to,
+ *   k - switches to alignment-free MinHash distances of k-mers, sketchSize - number of hashes per sequence (default 1000), maxDistance - hybrid mode: pairs with a MinHash distance up to it are aligned exactly; the scores of all pairs are still kept, so beyond 65536 sequences -o is needed,
+ *   -d - collapses identical sequences before the alignment: only one of them is aligned with the others and the copies are merged into it first, identity - collapses also sequences of the same length that match in at least this fraction of positions (e. g. 0.99),
+ *   linkage - how the scores of a merged node are computed: single, complete, weighted (default, the mean of the scores of both children), upgma (the mean over all sequences) or ward (not with -d or -D); single linkage is computed as a spanning tree without the merge queue,
+ *   report.json - switches on the instrumentation and writes the final report (times of the phases, cells per second, merges per second, peak heap) to this file,
+ *   seconds - interval of the progress lines printed to stderr (default 10 with -m, 0 switches them off); it also switches on the instrumentation,
+ *   alignments.txt - file the pairwise alignments of the merged pairs of sequences are written to,
+ *   tree.nwk - file the tree is written to in the Newick format, sequences labelled with the first line of their description and branch lengths derived from the merge scores,
+ *   tree.json - file the same tree is written to as nested JSON objects,
+ *   scores.tmp - keeps the pairwise scores (as floats) in this memory-mapped scratch file instead of the heap, for inputs whose score matrix does not fit into it; required beyond 65536 sequences,
+ *   port - service mode: the matrix is loaded once and clustering jobs are taken over a socket on the loopback interface at this port, or over stdin/stdout with "-", see {@link phylogenetictree.TreeService} for the protocol; jobs - number of jobs running at the same time (default 2), queue - number of jobs waiting for them (default 64), threads - alignment threads shared by all jobs,
+ *   inputs - batch mode: a directory of FASTA files or a manifest listing them (one path per line), clustered in one process with the matrix loaded once, jobs files at the same time (default: the number of threads) on one shared pool of threads; output - directory receiving a Newick tree per file and summary.tsv, see {@link phylogenetictree.BatchRunner},
+ *   shards - directory of a sharded run: with -n the pairs are split into the given number of blocks of equal work and the plan is saved there, with -w the given block (counted from 0) is computed and saved there, without either the saved blocks are assembled and clustered.
  * 
  * Computes clusters and phylogenetic tree.
  * 
@@ -28,22 +59,380 @@ public class PhylogeneticTree {
     
     public static void main(String[] args) {
         
-        if(args.length != 2){
+        boolean verbose = false;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int band = 0, maxBand = Integer.MAX_VALUE;
+        String cacheFile = null;
+        int cacheSize = 1 << 22;
+        String oldState = null, newState = null;
+        int kmer = 0, sketchSize = 1000;
+        double hybrid = Double.NaN;
+        double collapse = Double.NaN;
+        String report = null;
+        int progress = -1;
+        String alignments = null;
+        String newick = null, json = null;
+        String outOfCore = null;
+        String shards = null;
+        int blocks = 0, shardBlock = -1;
+        String service = null;
+        int jobThreads = 0, queueSize = 64;   // jobs: 2 in the service, the number of threads in a batch
+        int pipeline = 0;
+        Linkage linkage = Linkage.WEIGHTED;
+        double cap = Double.NaN;
+        String batch = null, output = null;
+        int a = 0;
+        
+        try {
+            for(; a < args.length && args[a].startsWith("-"); a++){
+                
+                switch(args[a]){
+                    case "-v":
+                        verbose = true;
+                        break;
+                    case "-t":
+                        threads = Integer.parseInt(args[++a]);
+                        break;
+                    case "-b":
+                        band = Integer.parseInt(args[++a]);
+                        break;
+                    case "-B":
+                        maxBand = Integer.parseInt(args[++a]);
+                        break;
+                    case "-e":
+                        cap = Double.parseDouble(args[++a]);
+                        break;
+                    case "-c":
+                        cacheFile = args[++a];
+                        break;
+                    case "-C":
+                        cacheSize = Integer.parseInt(args[++a]);
+                        break;
+                    case "-P":
+                        pipeline = Integer.parseInt(args[++a]);
+                        break;
+                    case "-i":
+                        oldState = args[++a];
+                        break;
+                    case "-s":
+                        newState = args[++a];
+                        break;
+                    case "-k":
+                        kmer = Integer.parseInt(args[++a]);
+                        break;
+                    case "-z":
+                        sketchSize = Integer.parseInt(args[++a]);
+                        break;
+                    case "-H":
+                        hybrid = Double.parseDouble(args[++a]);
+                        break;
+                    case "-d":
+                        collapse = 1;
+                        break;
+                    case "-D":
+                        collapse = Double.parseDouble(args[++a]);
+                        break;
+                    case "-l":
+                        linkage = Linkage.parse(args[++a]);
+                        break;
+                    case "-m":
+                        report = args[++a];
+                        break;
+                    case "-p":
+                        progress = Integer.parseInt(args[++a]);
+                        break;
+                    case "-a":
+                        alignments = args[++a];
+                        break;
+                    case "-N":
+                        newick = args[++a];
+                        break;
+                    case "-J":
+                        json = args[++a];
+                        break;
+                    case "-o":
+                        outOfCore = args[++a];
+                        break;
+                    case "-L":
+                        service = args[++a];
+                        break;
+                    case "-j":
+                        jobThreads = Integer.parseInt(args[++a]);
+                        break;
+                    case "-q":
+                        queueSize = Integer.parseInt(args[++a]);
+                        break;
+                    case "-M":
+                        batch = args[++a];
+                        break;
+                    case "-O":
+                        output = args[++a];
+                        break;
+                    case "-S":
+                        shards = args[++a];
+                        break;
+                    case "-n":
+                        blocks = Integer.parseInt(args[++a]);
+                        break;
+                    case "-w":
+                        shardBlock = Integer.parseInt(args[++a]);
+                        break;
+                    default:
+                        throw new IllegalArgumentException(args[a]);
+                }
+            }
+        } catch (RuntimeException ex) {
+            a = -1;
+        }
+        
+        if(linkage == Linkage.WARD && !Double.isNaN(collapse))
+            a = -1;    // Ward's update of duplicates merged with themselves is not the one of the full run
+        if(!Double.isNaN(cap) && (band > 0 || oldState != null || newState != null || kmer > 0 || shards != null))
+            a = -1;    // capped scores must not be saved or mixed with exact ones
+        if(service != null && batch == null && a >= 0 && args.length - a == 1 && threads > 0 && jobThreads >= 0 && queueSize > 0 && band >= 0 && maxBand > 0){
+            
+            serve(service, args[a], threads, jobThreads == 0 ? 2 : jobThreads, queueSize, band, maxBand, cap, collapse, linkage);
+            return;
+        }
+        if(batch != null && output != null && service == null && a >= 0 && args.length - a == 1 && threads > 0 && jobThreads >= 0 && band >= 0 && maxBand > 0){
+            
+            runBatch(batch, output, args[a], threads, jobThreads == 0 ? threads : jobThreads, band, maxBand, cap, collapse, linkage);
+            return;
+        }
+        if(a < 0 || args.length - a != 2 || service != null || batch != null || output != null || threads < 1 || band < 0 || maxBand < 1 || ((blocks != 0 || shardBlock >= 0) && shards == null) || blocks < 0 || (blocks > 0 && shardBlock >= 0) || pipeline < 0
+                || (pipeline > 0 && (cacheFile != null || oldState != null || kmer > 0 || !Double.isNaN(collapse) || outOfCore != null || shards != null))){
             System.out.printf("Wrong call format.\n");
             return;
         }
         
+        Metrics metrics = null;
+        if(report != null || progress >= 0){
+            
+            metrics = new Metrics();
+            if(progress != 0)
+                metrics.startProgress(progress < 0 ? 10 : progress, System.err);
+            metrics.startPhase(Metrics.Phase.PARSE);
+        }
+        
         Interface in = new Interface();
+        in.verbose = verbose;
+        ScoreCache cache = null;
+        HierarchicalClustering hc;
         try {
-            in.getSequences(args[0]);
-            in.getMatrix(args[1]);
-        } catch (IOException ex) {
+            if(pipeline > 0){   // the sequences are read together with the alignment below
+                
+                in.getMatrix(args[a + 1]);
+                hc = new HierarchicalClustering(in.matrix);
+            }
+            else{
+                
+                in.getSequences(args[a]);
+                in.getMatrix(args[a + 1]);
+                hc = new HierarchicalClustering(in.arena, in.matrix);
+            }
+            if(cacheFile != null)
+                cache = new ScoreCache(cacheFile, cacheSize);
+            
+            if(!Double.isNaN(collapse))
+                hc.setCollapse(collapse);
+            if(kmer > 0)
+                hc.setDistanceProvider(new MinHashDistance(kmer, sketchSize, hybrid, in.matrix));
+            hc.setScoreCap(cap);
+            hc.setOutOfCore(outOfCore);
+            if(oldState != null)
+                hc.setPreviousState(ClusteringState.load(oldState));   // after the settings that make up its scoring mode
+            
+            if(shards != null && blocks > 0){
+                
+                ShardPlan plan = hc.planShards(shards, blocks);
+                for(int k = 0; k < plan.blocks(); k++){
+                    System.out.printf("block %d: pairs %d to %d\n", k, plan.from(k), plan.to(k) - 1);
+                }
+                return;
+            }
+            if(shards != null && shardBlock < 0){
+                
+                List<Integer> missing = hc.setShards(shards);
+                if(!missing.isEmpty()){
+                    
+                    System.err.printf("missing blocks in %s: %s\n", shards, missing);
+                    return;
+                }
+            }
+        } catch (IOException | IllegalArgumentException ex) {
             Logger.getLogger(PhylogeneticTree.class.getName()).log(Level.SEVERE, null, ex);
+            return;
         }
         
-        HierarchicalClustering hc = new HierarchicalClustering(in.sequences, in.weights);
-        hc.initalizeClustering();
+        hc.setParallelism(threads);
+        hc.setBand(band, maxBand);
+        hc.setScoreCache(cache);
+        hc.setMetrics(metrics);
+        hc.setLinkage(linkage);
+        if(metrics != null)
+            metrics.startPhase(Metrics.Phase.ALIGNMENT);
+        if(shardBlock >= 0){
+            
+            try {
+                hc.computeShard(shards, shardBlock);
+            } catch (IOException | IllegalArgumentException ex) {
+                Logger.getLogger(PhylogeneticTree.class.getName()).log(Level.SEVERE, null, ex);
+                return;
+            }
+        }
+        else if(pipeline > 0){
+            
+            try {
+                in.arena = hc.readAndAlign(args[a], verbose, pipeline);   // the parse phase is part of the alignment phase here
+            } catch (IOException | IllegalArgumentException ex) {
+                Logger.getLogger(PhylogeneticTree.class.getName()).log(Level.SEVERE, null, ex);
+                return;
+            }
+        }
+        else
+            hc.initalizeClustering();
+        if(oldState != null)
+            System.err.printf("reused %d pair scores from %s\n", hc.getReusedPairs(), oldState);
+        if(kmer > 0)
+            System.err.printf("MinHash scores: %d pairs\n", hc.getProvidedPairs());
+        if(band > 0)
+            System.err.println(hc.getBandStatistics());
+        if(!Double.isNaN(cap))
+            System.err.println(hc.getBoundStatistics());
+        if(!Double.isNaN(collapse))
+            System.err.println(hc.getCollapseStatistics());
+        if(metrics != null)
+            System.err.println(hc.getWorkspaceStatistics());
+        if(cache != null){
+            
+            try {
+                cache.close();
+            } catch (IOException ex) {
+                Logger.getLogger(PhylogeneticTree.class.getName()).log(Level.WARNING, null, ex);
+            }
+            System.err.println(cache.getStatistics());
+        }
+        if(shardBlock >= 0){
+            
+            finish(metrics, report);
+            return;
+        }
+        try {
+            if(newState != null)
+                hc.saveScores(newState);
+        } catch (IOException ex) {
+            Logger.getLogger(PhylogeneticTree.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        if(metrics != null)
+            metrics.startPhase(Metrics.Phase.MERGE);
         hc.runClustering();
-        hc.printTree(hc.getTree().size());
+        if(metrics != null)
+            metrics.startPhase(Metrics.Phase.OUTPUT);
+        hc.printTree(hc.getTree().size(), 0);
+        try {
+            if(alignments != null)
+                hc.writeAlignments(alignments);
+            if(newick != null || json != null){
+                
+                TreeWriter writer = hc.getTreeWriter(id -> in.arena.getHeader(id - 1));
+                if(newick != null){
+                    try (Writer out = TreeWriter.open(newick)){
+                        writer.writeNewick(out);
+                    }
+                }
+                if(json != null){
+                    try (Writer out = TreeWriter.open(json)){
+                        writer.writeJson(out);
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(PhylogeneticTree.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        
+        finish(metrics, report);
+    }
+    
+    /**
+     * Runs the service mode until the end of stdin (port "-") or forever (a port number).
+     */
+    
+    private static void serve(String port, String matrixFile, int threads, int jobThreads, int queueSize, int band, int maxBand, double cap, double collapse, Linkage linkage){
+        
+        Interface in = new Interface();
+        try {
+            in.getMatrix(matrixFile);
+        } catch (IOException ex) {
+            Logger.getLogger(PhylogeneticTree.class.getName()).log(Level.SEVERE, null, ex);
+            return;
+        }
+        TreeService service = new TreeService(in.matrix, threads, jobThreads, queueSize);
+        service.setJobSetup(hc -> {
+            
+            hc.setBand(band, maxBand);
+            hc.setScoreCap(cap);
+            hc.setLinkage(linkage);
+            if(!Double.isNaN(collapse))
+                hc.setCollapse(collapse);
+        });
+        service.warmUp();
+        try {
+            if(port.equals("-")){
+                
+                service.serve(new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)), new PrintWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8)));
+                service.shutdown();
+            }
+            else
+                service.listen(Integer.parseInt(port));
+        } catch (IOException | NumberFormatException ex) {
+            Logger.getLogger(PhylogeneticTree.class.getName()).log(Level.SEVERE, null, ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Runs the batch mode and prints the number of failed inputs.
+     */
+    
+    private static void runBatch(String inputs, String output, String matrixFile, int threads, int jobThreads, int band, int maxBand, double cap, double collapse, Linkage linkage){
+        
+        Interface in = new Interface();
+        try {
+            in.getMatrix(matrixFile);
+            List<Path> files = BatchRunner.inputs(Paths.get(inputs));
+            BatchRunner runner = new BatchRunner(in.matrix, threads, jobThreads);
+            runner.setJobSetup(hc -> {
+                
+                hc.setBand(band, maxBand);
+                hc.setScoreCap(cap);
+                hc.setLinkage(linkage);
+                if(!Double.isNaN(collapse))
+                    hc.setCollapse(collapse);
+            });
+            int failed = runner.run(files, Paths.get(output));
+            System.err.printf("batch: %d inputs, %d failed, summary in %s\n", files.size(), failed, Paths.get(output, "summary.tsv"));
+        } catch (IOException ex) {
+            Logger.getLogger(PhylogeneticTree.class.getName()).log(Level.SEVERE, null, ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Stops the progress lines and writes the report, if the instrumentation is on.
+     */
+    
+    private static void finish(Metrics metrics, String report){
+        
+        if(metrics == null)
+            return;
+        metrics.stop();
+        try {
+            if(report != null)
+                metrics.writeReport(report);
+        } catch (IOException ex) {
+            Logger.getLogger(PhylogeneticTree.class.getName()).log(Level.SEVERE, null, ex);
+        }
     }
 }
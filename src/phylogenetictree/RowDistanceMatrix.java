@@ -0,0 +1,73 @@
+package phylogenetictree;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * In-memory {@link phylogenetictree.DistanceMatrix} that grows by whole rows, for the pipelined alignment ({@link phylogenetictree.HierarchicalClustering#readAndAlign}), which learns the number of sequences only at the end of the file.
+ * Row i holds the scores of (i, j), j < i, in its own array, so adding a row copies no scores and the matrix never exists twice.
+ */
+public class RowDistanceMatrix implements DistanceMatrix {
+    
+    /**
+     * The rows, rows[i] has i scores; only the first size are used.
+     */
+    private double[][] rows = new double[16][];
+    
+    /**
+     * Number of rows (and columns).
+     */
+    private int size;
+    
+    /**
+     * Creates an empty matrix.
+     */
+    
+    RowDistanceMatrix(){
+    }
+    
+    /**
+     * Adds a row (and column) filled with zeros. Rows are added by one thread, but the rows already added may be filled by others meanwhile.
+     * @return the scores of the new row i with the rows j < i, to be filled by the caller
+     */
+    
+    double[] addRow(){
+        
+        if(size == rows.length)
+            rows = Arrays.copyOf(rows, 2 * size);
+        rows[size] = new double[size];
+        return rows[size++];
+    }
+    
+    @Override
+    public double get(int i, int j){
+        
+        return i > j ? rows[i][j] : rows[j][i];
+    }
+    
+    @Override
+    public void set(int i, int j, double value){
+        
+        if(i > j)
+            rows[i][j] = value;
+        else
+            rows[j][i] = value;
+    }
+    
+    @Override
+    public int size(){
+        
+        return size;
+    }
+    
+    @Override
+    public void write(DataOutput out) throws IOException{
+        
+        for(int i = 1; i < size; i++){
+            for(double value : rows[i]){
+                out.writeDouble(value);
+            }
+        }
+    }
+}
@@ -0,0 +1,466 @@
+package phylogenetictree;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Persistent cache of pairwise alignment scores, shared between runs.
+ *
+ * A score is keyed by the fingerprints (64-bit content hashes) of both sequences and of the weights matrix, so it is found again whatever the order and the numbering of the sequences in the next input.
+ * On disk the cache is an append-only log of 32-byte records (three fingerprints and the score) after an 8-byte magic number. It is loaded into an open-addressing table when the cache is opened; new scores are appended in batches.
+ * When the table grows beyond the given number of entries, the log is read again (to keep the records other processes appended meanwhile), the least recently used quarter is evicted and the log is rewritten to a temporary file which then atomically replaces it.
+ *
+ * Writers in different processes are serialized by a lock on the file "name.lock", the threads of one process by a monitor (a file lock only excludes other processes). Readers never see a half-written log: a torn record at the end (of a writer that died) is ignored and cut off by the next append, and a rewritten log replaces the old one in one rename.
+ * Inside a process the cache can be used by any number of threads. The appends are written outside the lock of the table, so lookups never wait for the file; only the rare eviction holds the table while it rewrites the log.
+ */
+public class ScoreCache implements AutoCloseable {
+
+    private static final long MAGIC = 0x5054534353524531L;    // "PTSCSRE1"
+    private static final int RECORD = 32;
+    private static final int FLUSH_EVERY = 4096;
+
+    private final Path file, lockFile;
+
+    /**
+     * Maximal number of entries kept.
+     */
+    private final int capacity;
+
+    /**
+     * The open-addressing table: key of slot s is (keys[3s], keys[3s + 1], keys[3s + 2]), used[s] tells whether the slot holds a key.
+     */
+    private long[] keys;
+    private double[] values;
+    private long[] lastUse;
+    private boolean[] used;
+    private int count = 0;
+
+    /**
+     * Logical clock for the least recently used eviction.
+     */
+    private final AtomicLong clock = new AtomicLong();
+
+    /**
+     * Records not yet appended to the log. A full buffer is replaced by an empty one and written after the lock of the table is released.
+     */
+    private ByteBuffer pending = ByteBuffer.allocate(FLUSH_EVERY * RECORD);
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Serializes the file operations of the threads of this process.
+     */
+    private final Object fileMutex = new Object();
+    private final LongAdder hits = new LongAdder(), misses = new LongAdder();
+
+    /**
+     * Opens (or creates) the cache and loads its entries.
+     * @param fileName name of the cache file
+     * @param _capacity maximal number of entries kept
+     * @throws IOException if the file cannot be read or is not a score cache
+     */
+
+    public ScoreCache(String fileName, int _capacity) throws IOException{
+
+        if(_capacity < 16)
+            throw new IllegalArgumentException("Score cache capacity must be at least 16.");
+        file = Paths.get(fileName);
+        lockFile = Paths.get(fileName + ".lock");
+        capacity = _capacity;
+        allocate(16);
+
+        locked(() -> {
+
+            if(!Files.exists(file) || Files.size(file) == 0){
+
+                ByteBuffer header = ByteBuffer.allocate(8).putLong(0, MAGIC);
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)){
+                    channel.write(header);
+                }
+            }
+            else
+                load(false);
+        });
+        if(count > capacity)
+            evict();
+    }
+
+    /**
+     * Work on the files, done while this process holds the file lock.
+     */
+    private interface FileWork {
+
+        void run() throws IOException;
+    }
+
+    /**
+     * Runs the work while holding the monitor of this process and the lock on "name.lock".
+     */
+
+    private void locked(FileWork work) throws IOException{
+
+        synchronized(fileMutex){
+
+            try (FileChannel lockChannel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)){
+
+                FileLock fileLock = lockChannel.lock();
+                try {
+                    work.run();
+                } finally {
+                    fileLock.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the log into the table.
+     * @param merge if true, only keys that are not in the table yet are added (records appended by other processes), otherwise every record is inserted
+     */
+
+    private void load(boolean merge) throws IOException{
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)){
+
+            ByteBuffer buffer = ByteBuffer.allocate(RECORD * 8192);
+            buffer.limit(8);
+            while(buffer.hasRemaining() && channel.read(buffer) > 0);
+            if(buffer.position() < 8 || buffer.getLong(0) != MAGIC)
+                throw new IOException("File " + file + " is not a score cache.");
+
+            buffer.clear();
+            int n;
+            do {
+                n = channel.read(buffer);
+                buffer.flip();
+                while(buffer.remaining() >= RECORD){
+
+                    long a = buffer.getLong(), b = buffer.getLong(), matrix = buffer.getLong();
+                    double score = buffer.getDouble();
+                    if(!merge || !used[find(a, b, matrix)])
+                        insert(a, b, matrix, score);
+                }
+                buffer.compact();   // a torn record at the end of the log is ignored
+            } while(n >= 0);
+        }
+    }
+
+    /**
+     * 64-bit fingerprint of an encoded sequence.
+     * @param sequence the sequence
+     * @return the fingerprint
+     */
+
+    public static long fingerprint(byte[] sequence){
+
+        long h = 0xcbf29ce484222325L ^ sequence.length;   // FNV-1a
+        for(byte b : sequence){
+
+            h ^= b;
+            h *= 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    /**
+     * Finalization step of MurmurHash3.
+     */
+
+    static long mix(long h){
+
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Looks the score of a pair up. The order of the sequences does not matter.
+     * @param a fingerprint of the first sequence
+     * @param b fingerprint of the second sequence
+     * @param matrix fingerprint of the weights matrix
+     * @return the score, NaN if it is not cached
+     */
+
+    public double get(long a, long b, long matrix){
+
+        lock.readLock().lock();
+        try {
+            int slot = find(Math.min(a, b), Math.max(a, b), matrix);
+            if(used[slot]){
+
+                hits.increment();
+                lastUse[slot] = clock.incrementAndGet();  // written under the read lock: a lost update only affects the eviction order
+                return values[slot];
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        misses.increment();
+        return Double.NaN;
+    }
+
+    /**
+     * Stores the score of a pair. The order of the sequences does not matter.
+     * @param a fingerprint of the first sequence
+     * @param b fingerprint of the second sequence
+     * @param matrix fingerprint of the weights matrix
+     * @param score the score
+     * @throws IOException if the log cannot be written
+     */
+
+    public void put(long a, long b, long matrix, double score) throws IOException{
+
+        ByteBuffer full = null;
+        boolean over;
+        lock.writeLock().lock();
+        try {
+            long low = Math.min(a, b), high = Math.max(a, b);
+            insert(low, high, matrix, score);
+            pending.putLong(low).putLong(high).putLong(matrix).putDouble(score);
+
+            if(!pending.hasRemaining())
+                full = takePending();
+            over = count > capacity;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if(full != null)
+            append(full);
+        if(over)
+            evict();
+    }
+
+    /**
+     * Appends the pending records to the log.
+     * @throws IOException if the log cannot be written
+     */
+
+    public void flush() throws IOException{
+
+        lock.writeLock().lock();
+        ByteBuffer records;
+        try {
+            records = takePending();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        append(records);
+    }
+
+    @Override
+    public void close() throws IOException{
+
+        flush();
+    }
+
+    /**
+     * @return a line with the number of entries, hits, misses and the hit rate
+     */
+
+    public String getStatistics(){
+
+        long h = hits.sum(), m = misses.sum();
+        return String.format("score cache: %d entries, %d hits, %d misses, hit rate %.1f%%", count, h, m, h + m == 0 ? 0.0 : 100.0 * h / (h + m));
+    }
+
+    public long getHits(){
+
+        return hits.sum();
+    }
+
+    public long getMisses(){
+
+        return misses.sum();
+    }
+
+    /**
+     * @return the pending records, replaced by an empty buffer; call with the write lock held
+     */
+
+    private ByteBuffer takePending(){
+
+        ByteBuffer records = pending;
+        pending = ByteBuffer.allocate(FLUSH_EVERY * RECORD);
+        return records;
+    }
+
+    /**
+     * Appends the records to the log. A torn record left at its end by a writer that died is cut off first, so the new records stay aligned.
+     */
+
+    private void append(ByteBuffer records) throws IOException{
+
+        if(records.position() == 0)
+            return;
+        records.flip();
+        locked(() -> {
+
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)){
+
+                long end = channel.size() - (channel.size() - 8) % RECORD;
+                if(end < channel.size())
+                    channel.truncate(end);
+                channel.position(end);
+                while(records.hasRemaining()){
+                    channel.write(records);
+                }
+            }
+        });
+    }
+
+    /**
+     * Keeps the most recently used three quarters of the capacity and rewrites the log with them.
+     * The pending records are appended first and the log is read again under the file lock, so the records other processes appended since it was loaded take part in the eviction instead of being lost.
+     */
+
+    private void evict() throws IOException{
+
+        ByteBuffer records;
+        lock.writeLock().lock();
+        try {
+            records = takePending();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        append(records);
+
+        locked(() -> {
+
+            lock.writeLock().lock();
+            try {
+                load(true);
+                if(count > capacity)
+                    rewrite();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        });
+    }
+
+    /**
+     * Drops the least recently used entries and replaces the log by the rest; call with the write lock and the file lock held.
+     */
+
+    private void rewrite() throws IOException{
+
+        long[] stamps = new long[count];
+        for(int s = 0, k = 0; s < used.length; s++){
+            if(used[s])
+                stamps[k++] = lastUse[s];
+        }
+        Arrays.sort(stamps);
+        int keep = capacity / 4 * 3;
+        long oldest = stamps[count - keep];  // entries used before it are dropped
+
+        long[] oldKeys = keys;
+        double[] oldValues = values;
+        long[] oldLastUse = lastUse;
+        boolean[] oldUsed = used;
+        allocate(Integer.highestOneBit(Math.max(keep, 8)) * 4);
+
+        Path temporary = Paths.get(file + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)){
+
+            ByteBuffer buffer = ByteBuffer.allocate(RECORD * 8192);
+            buffer.putLong(MAGIC);
+            for(int s = 0; s < oldUsed.length; s++){
+
+                if(!oldUsed[s] || oldLastUse[s] < oldest || count >= keep)
+                    continue;
+                insert(oldKeys[3*s], oldKeys[3*s + 1], oldKeys[3*s + 2], oldValues[s]);
+                lastUse[find(oldKeys[3*s], oldKeys[3*s + 1], oldKeys[3*s + 2])] = oldLastUse[s];
+                if(buffer.remaining() < RECORD){
+
+                    buffer.flip();
+                    while(buffer.hasRemaining()){
+                        channel.write(buffer);
+                    }
+                    buffer.clear();
+                }
+                buffer.putLong(oldKeys[3*s]).putLong(oldKeys[3*s + 1]).putLong(oldKeys[3*s + 2]).putDouble(oldValues[s]);
+            }
+            buffer.flip();
+            while(buffer.hasRemaining()){
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void allocate(int slots){
+
+        keys = new long[3 * slots];
+        values = new double[slots];
+        lastUse = new long[slots];
+        used = new boolean[slots];
+        count = 0;
+    }
+
+    /**
+     * @return the slot holding the key, or the empty slot where it belongs
+     */
+
+    private int find(long a, long b, long matrix){
+
+        int mask = used.length - 1;
+        int slot = (int) mix(a ^ Long.rotateLeft(b, 21) ^ Long.rotateLeft(matrix, 42)) & mask;
+        while(used[slot] && (keys[3*slot] != a || keys[3*slot + 1] != b || keys[3*slot + 2] != matrix)){
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void insert(long a, long b, long matrix, double score){
+
+        if(2 * (count + 1) > used.length)
+            grow();
+
+        int slot = find(a, b, matrix);
+        if(!used[slot]){
+
+            used[slot] = true;
+            keys[3*slot] = a;
+            keys[3*slot + 1] = b;
+            keys[3*slot + 2] = matrix;
+            count++;
+        }
+        values[slot] = score;
+        lastUse[slot] = clock.incrementAndGet();
+    }
+
+    private void grow(){
+
+        long[] oldKeys = keys, oldLastUse = lastUse;
+        double[] oldValues = values;
+        boolean[] oldUsed = used;
+        allocate(oldUsed.length * 2);
+
+        for(int s = 0; s < oldUsed.length; s++){
+
+            if(oldUsed[s]){
+
+                int slot = find(oldKeys[3*s], oldKeys[3*s + 1], oldKeys[3*s + 2]);
+                used[slot] = true;
+                System.arraycopy(oldKeys, 3*s, keys, 3*slot, 3);
+                values[slot] = oldValues[s];
+                lastUse[slot] = oldLastUse[s];
+                count++;
+            }
+        }
+    }
+}
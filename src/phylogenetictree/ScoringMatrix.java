@@ -0,0 +1,224 @@
+package phylogenetictree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+
+/**
+ * Compiled form of the weights matrix. Every letter of the alphabet (including the gap symbol '*') is mapped to a small integer code and the weights are stored in a flat table, so the alignment loops do plain array lookups instead of boxed HashMap lookups.
+ */
+public class ScoringMatrix {
+
+    /**
+     * The symbol that stands for a blank (insertion or deletion) in the weights matrix.
+     */
+    public static final char GAP = '*';
+
+    /**
+     * Letters of the alphabet ordered by their codes.
+     */
+    private final char[] letters;
+
+    /**
+     * Maps a letter to its code, -1 if the letter is not in the alphabet.
+     */
+    private final byte[] codes = new byte[256];
+
+    /**
+     * Flat weights table: weight of matching letters with codes a and b is stored at a * size + b.
+     */
+    private final double[] table;
+
+    /**
+     * The same table as integers, null if some weight is not an integer.
+     */
+    private final int[] intTable;
+
+    /**
+     * Code of the gap symbol.
+     */
+    private final byte gap;
+
+    private final boolean symmetric;
+
+    /**
+     * Compiles the weights matrix.
+     * @param _weights weights matrix in the form read by {@link phylogenetictree.Interface#getMatrix}: weights.get(a).get(b) is the weight of matching a and b
+     * @throws IllegalArgumentException if the matrix does not contain the gap symbol or is not complete
+     */
+
+    ScoringMatrix(HashMap<Character, HashMap<Character, Double>> _weights){
+
+        ArrayList<Character> alphabet = new ArrayList<>(_weights.keySet());
+        Collections.sort(alphabet);    // codes do not depend on the HashMap order
+
+        if(!alphabet.contains(GAP))
+            throw new IllegalArgumentException("The weights matrix does not contain the gap symbol '" + GAP + "'.");
+        if(alphabet.size() > Byte.MAX_VALUE)
+            throw new IllegalArgumentException("The alphabet of the weights matrix is too big.");
+
+        Arrays.fill(codes, (byte) -1);
+        letters = new char[alphabet.size()];
+        for(int i = 0; i < letters.length; i++){
+
+            letters[i] = alphabet.get(i);
+            if(letters[i] >= codes.length)
+                throw new IllegalArgumentException("Letter '" + letters[i] + "' cannot be used in the weights matrix.");
+            codes[letters[i]] = (byte) i;
+        }
+        gap = codes[GAP];
+
+        table = new double[letters.length * letters.length];
+        int[] ints = new int[table.length];
+        boolean integral = true, sym = true;
+
+        for(int a = 0; a < letters.length; a++){
+
+            for(int b = 0; b < letters.length; b++){
+
+                Double w = _weights.get(letters[a]).get(letters[b]);
+                if(w == null)
+                    throw new IllegalArgumentException("The weights matrix has no weight for (" + letters[a] + ", " + letters[b] + ").");
+
+                table[a * letters.length + b] = w;
+                ints[a * letters.length + b] = (int) w.doubleValue();
+                integral &= ints[a * letters.length + b] == w;
+            }
+        }
+        for(int a = 0; a < letters.length; a++){
+            for(int b = 0; b < a; b++){
+                sym &= table[a * letters.length + b] == table[b * letters.length + a];
+            }
+        }
+        intTable = integral ? ints : null;
+        symmetric = sym;
+    }
+
+    /**
+     * Translates a letter to its code.
+     * @param c letter of the alphabet
+     * @return code of the letter, -1 if it is not in the alphabet
+     */
+
+    public byte code(char c){
+
+        return c < codes.length ? codes[c] : -1;
+    }
+
+    /**
+     * Translates a code back to its letter.
+     * @param code code of a letter
+     * @return the letter
+     */
+
+    public char letter(byte code){
+
+        return letters[code];
+    }
+
+    /**
+     * Encodes the whole sequence. Should be done once per sequence, the alignment works only on the encoded form.
+     * @param sequence sequence to encode
+     * @return codes of the consecutive letters
+     * @throws IllegalArgumentException if the sequence contains a letter that is not in the alphabet
+     */
+
+    public byte[] encode(String sequence){
+
+        byte[] encoded = new byte[sequence.length()];
+        for(int i = 0; i < encoded.length; i++){
+
+            encoded[i] = code(sequence.charAt(i));
+            if(encoded[i] < 0)
+                throw new IllegalArgumentException("Letter '" + sequence.charAt(i) + "' is not in the alphabet of the weights matrix.");
+        }
+        return encoded;
+    }
+
+    /**
+     * @param a code of the first letter
+     * @param b code of the second letter
+     * @return weight of matching a and b
+     */
+
+    public double score(byte a, byte b){
+
+        return table[a * letters.length + b];
+    }
+
+    /**
+     * @param a code of a letter
+     * @return weight of matching a with a blank
+     */
+
+    public double gap(byte a){
+
+        return table[a * letters.length + gap];
+    }
+
+    /**
+     * @return number of letters in the alphabet (including the gap symbol)
+     */
+
+    public int size(){
+
+        return letters.length;
+    }
+
+    public byte getGap(){
+
+        return gap;
+    }
+
+    /**
+     * Returns the flat weights table (not a copy, do not modify).
+     * @return weights table indexed by a * size() + b
+     */
+
+    public double[] getTable(){
+
+        return table;
+    }
+
+    /**
+     * Returns the flat weights table as integers (not a copy, do not modify).
+     * @return weights table indexed by a * size() + b, null if some weight is not an integer
+     */
+
+    public int[] getIntTable(){
+
+        return intTable;
+    }
+
+    public boolean isIntegral(){
+
+        return intTable != null;
+    }
+
+    /**
+     * 64-bit fingerprint of the alphabet and all weights, equal for equal matrices.
+     * @return the fingerprint
+     */
+
+    public long fingerprint(){
+
+        long h = letters.length;
+        for(char c : letters){
+            h = ScoreCache.mix(h * 31 + c);
+        }
+        for(double w : table){
+            h = ScoreCache.mix(h * 31 + Double.doubleToLongBits(w));
+        }
+        return h;
+    }
+
+    /**
+     * @return true if weight of (a, b) equals weight of (b, a) for all letters, i. e. aligning a with b gives the same score as aligning b with a
+     */
+
+    public boolean isSymmetric(){
+
+        return symmetric;
+    }
+}
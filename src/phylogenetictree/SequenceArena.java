@@ -0,0 +1,262 @@
+package phylogenetictree;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Compact storage of many sequences: all residues live in one contiguous byte array and every sequence is described by its offset in it.
+ * As long as only the letters A, C, G and T occur, four residues are packed into one byte (2 bits each). When any other letter shows up the arena switches (once) to one byte per residue.
+ * The FASTA descriptions are kept in a second byte array the same way.
+ */
+public class SequenceArena {
+
+    /**
+     * Letters that can be packed, indexed by their 2-bit code.
+     */
+    private static final byte[] NUCLEOTIDES = {'A', 'C', 'G', 'T'};
+
+    /**
+     * 2-bit code of a letter, -1 if it cannot be packed.
+     */
+    private static final byte[] PACKED_CODE = new byte[256];
+
+    static {
+        Arrays.fill(PACKED_CODE, (byte) -1);
+        for(byte c = 0; c < NUCLEOTIDES.length; c++){
+            PACKED_CODE[NUCLEOTIDES[c]] = c;
+        }
+    }
+
+    /**
+     * The residues of all sequences, one after another.
+     */
+    private byte[] residues = new byte[1 << 16];
+
+    /**
+     * Number of residues stored.
+     */
+    private long residueCount = 0;
+
+    /**
+     * True while the residues are stored with 2 bits each.
+     */
+    private boolean packed = true;
+
+    /**
+     * offsets[i] is the position of the first residue of the sequence i, offsets[size] is the start of the sequence being built.
+     */
+    private long[] offsets = new long[16];
+
+    /**
+     * The descriptions of all sequences, without the leading '>'.
+     */
+    private byte[] headers = new byte[1 << 12];
+
+    /**
+     * headerOffsets[i] is the position of the description of the sequence i, headerOffsets[size] is the start of the description being built.
+     */
+    private int[] headerOffsets = new int[16];
+
+    /**
+     * End of the description being built.
+     */
+    private int headerEnd = 0;
+
+    /**
+     * Number of completed sequences.
+     */
+    private int size = 0;
+
+    /**
+     * @return number of sequences
+     */
+
+    public int size(){
+
+        return size;
+    }
+
+    /**
+     * @return true if the residues are stored with 2 bits each
+     */
+
+    public boolean isPacked(){
+
+        return packed;
+    }
+
+    /**
+     * @return number of bytes used by the stored residues
+     */
+
+    public long residueBytes(){
+
+        return packed ? (residueCount + 3) / 4 : residueCount;
+    }
+
+    /**
+     * @param i index of the sequence, counted from 0
+     * @return number of residues of the sequence
+     */
+
+    public int length(int i){
+
+        return (int) (offsets[i + 1] - offsets[i]);
+    }
+
+    /**
+     * @param i index of the sequence, counted from 0
+     * @return FASTA description of the sequence (several description lines are separated by '\n')
+     */
+
+    public String getHeader(int i){
+
+        return new String(headers, headerOffsets[i], headerOffsets[i + 1] - headerOffsets[i], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param i index of the sequence, counted from 0
+     * @return the letters of the sequence as bytes
+     */
+
+    public byte[] get(int i){
+
+        byte[] sequence = new byte[length(i)];
+        for(int p = 0; p < sequence.length; p++){
+            sequence[p] = residue(offsets[i] + p);
+        }
+        return sequence;
+    }
+
+    /**
+     * @param i index of the sequence, counted from 0
+     * @return the sequence
+     */
+
+    public String getString(int i){
+
+        return new String(get(i), StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Encodes the sequence with the weights matrix without building a String.
+     * @param i index of the sequence, counted from 0
+     * @param matrix compiled weights matrix
+     * @return codes of the consecutive letters
+     * @throws IllegalArgumentException if the sequence contains a letter that is not in the alphabet
+     */
+
+    public byte[] encode(int i, ScoringMatrix matrix){
+
+        byte[] encoded = get(i);
+        for(int p = 0; p < encoded.length; p++){
+
+            char letter = (char) (encoded[p] & 0xff);
+            encoded[p] = matrix.code(letter);
+            if(encoded[p] < 0)
+                throw new IllegalArgumentException("Letter '" + letter + "' of the sequence no. " + (i + 1) + " is not in the alphabet of the weights matrix.");
+        }
+        return encoded;
+    }
+
+    private byte residue(long position){
+
+        if(packed)
+            return NUCLEOTIDES[(residues[(int) (position >> 2)] >> ((position & 3) << 1)) & 3];
+        return residues[(int) position];
+    }
+
+    /**
+     * Appends a letter to the sequence being built.
+     */
+
+    void addResidue(byte letter){
+
+        if(packed && PACKED_CODE[letter & 0xff] < 0)
+            unpack();
+
+        if(packed){
+
+            ensureResidues((residueCount >> 2) + 1);
+            int bit = (int) (residueCount & 3) << 1;
+            residues[(int) (residueCount >> 2)] = (byte) ((residues[(int) (residueCount >> 2)] & ~(3 << bit)) | (PACKED_CODE[letter & 0xff] << bit));
+        }
+        else{
+
+            ensureResidues(residueCount + 1);
+            residues[(int) residueCount] = letter;
+        }
+        residueCount++;
+    }
+
+    /**
+     * Appends a piece of the description of the sequence being built.
+     */
+
+    void addHeader(byte[] buffer, int from, int to){
+
+        if(headerEnd + to - from > headers.length)
+            headers = Arrays.copyOf(headers, Math.max(headerEnd + to - from, headers.length * 2));
+        System.arraycopy(buffer, from, headers, headerEnd, to - from);
+        headerEnd += to - from;
+    }
+
+    /**
+     * Closes the sequence being built.
+     */
+
+    void endSequence(){
+
+        if(size + 2 > offsets.length){
+
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            headerOffsets = Arrays.copyOf(headerOffsets, headerOffsets.length * 2);
+        }
+        offsets[size + 1] = residueCount;
+        headerOffsets[size + 1] = headerEnd;
+        size++;
+    }
+
+    /**
+     * @return number of residues of the sequence being built
+     */
+
+    long pendingLength(){
+
+        return residueCount - offsets[size];
+    }
+
+    /**
+     * @return length of the description of the sequence being built
+     */
+
+    int pendingHeaderLength(){
+
+        return headerEnd - headerOffsets[size];
+    }
+
+    /**
+     * Switches to one byte per residue.
+     */
+
+    private void unpack(){
+
+        if(residueCount > Integer.MAX_VALUE - 8)
+            throw new IllegalStateException("Too many residues for the sequence arena.");
+
+        byte[] unpacked = new byte[(int) Math.max(Math.min(residueCount * 2, Integer.MAX_VALUE - 8), 1 << 16)];
+        for(long p = 0; p < residueCount; p++){
+            unpacked[(int) p] = residue(p);
+        }
+        residues = unpacked;
+        packed = false;
+    }
+
+    private void ensureResidues(long bytes){
+
+        if(bytes > Integer.MAX_VALUE - 8)
+            throw new IllegalStateException("Too many residues for the sequence arena.");
+        if(bytes > residues.length)
+            residues = Arrays.copyOf(residues, (int) Math.min(Math.max(bytes, (long) residues.length * 2), Integer.MAX_VALUE - 8));
+    }
+}
@@ -0,0 +1,82 @@
+package phylogenetictree;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Local client of {@link phylogenetictree.TreeService}: submits one job per FASTA file and prints the responses until every job has answered.
+ *
+ * Calling convention: ServiceClient port [-i] [-f newick|json] files...
+ *  where:
+ *   port - port of the service on the loopback interface,
+ *   -i - sends the contents of the files inline (INLINE) instead of their paths (CLUSTER),
+ *   -f - format of the trees (default newick).
+ * The job ids are the numbers of the files, counted from 1.
+ */
+public class ServiceClient {
+
+    public static void main(String[] args) throws IOException {
+
+        if(args.length < 2){
+
+            System.out.printf("Wrong call format.\n");
+            return;
+        }
+        int port = Integer.parseInt(args[0]);
+        boolean inline = false;
+        String format = "newick";
+        int a = 1;
+        for(; a < args.length && args[a].startsWith("-"); a++){
+
+            if(args[a].equals("-i"))
+                inline = true;
+            else if(args[a].equals("-f") && a + 1 < args.length)
+                format = args[++a];
+            else{
+
+                System.out.printf("Wrong call format.\n");
+                return;
+            }
+        }
+
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)){
+
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            int jobs = 0;
+            for(; a < args.length; a++){
+
+                String id = Integer.toString(++jobs);
+                if(inline){
+
+                    out.print("INLINE " + id + " " + format + "\n");
+                    for(String line : Files.readAllLines(Paths.get(args[a]), StandardCharsets.ISO_8859_1)){
+                        out.print(line + "\n");
+                    }
+                    out.print("END\n");
+                }
+                else
+                    out.print("CLUSTER " + id + " " + Paths.get(args[a]).toAbsolutePath() + " " + format + "\n");
+            }
+            out.flush();
+
+            String line;
+            while(jobs > 0 && (line = in.readLine()) != null){
+
+                System.out.println(line);
+                if(!line.startsWith("QUEUED "))
+                    jobs--;
+            }
+            out.print("QUIT\n");
+            out.flush();
+        }
+    }
+}
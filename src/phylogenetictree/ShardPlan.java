@@ -0,0 +1,369 @@
+package phylogenetictree;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Split of the all-pairs alignment into blocks that separate processes (possibly on different machines) compute independently.
+ *
+ * The unordered pairs are numbered in the order of a packed lower triangle ({@link phylogenetictree.DistanceMatrix#index}) and every block is a range of these numbers. The boundaries are chosen so that all blocks have about the same work, the sum of the products of the lengths of their pairs.
+ * The plan is saved as "plan.txt" in the shard directory; the worker of block k writes the scores of its pairs to "block-k.bin" (to a temporary file first, which is then atomically renamed), so a block file either is complete or does not exist. A block whose worker crashed is simply computed again.
+ * The scores are written to the temporary file as they are computed ({@link phylogenetictree.ShardPlan.BlockWriter}), so a block of any number of pairs needs no memory for them.
+ * Plan and blocks carry a fingerprint of the sequences, the weights matrix and the scoring mode, so they are never combined with another input or with approximate scores.
+ */
+public class ShardPlan {
+
+    private static final long MAGIC = 0x5054534841524431L;    // "PTSHARD1"
+    private static final int HEADER = 8 + 8 + 4 + 8 + 8;
+
+    /**
+     * Number of sequences.
+     */
+    final int size;
+
+    /**
+     * Fingerprint of the sequences (in slot order), the weights matrix, the scoring mode and the number of blocks.
+     */
+    final long fingerprint;
+
+    /**
+     * Block k holds the pairs with numbers from starts[k] (inclusive) to starts[k + 1].
+     */
+    private final long[] starts;
+
+    private ShardPlan(int _size, long _fingerprint, long[] _starts){
+
+        size = _size;
+        fingerprint = _fingerprint;
+        starts = _starts;
+    }
+
+    /**
+     * Splits the pairs into blocks of about equal work.
+     * @param seqs the sequences in slot order
+     * @param inputFingerprint fingerprint of the sequences, the weights matrix and the scoring mode, see {@link phylogenetictree.ShardPlan#fingerprint(long[], long, String)}
+     * @param blocks number of blocks
+     * @return the plan
+     */
+
+    static ShardPlan create(byte[][] seqs, long inputFingerprint, int blocks){
+
+        if(blocks < 1)
+            throw new IllegalArgumentException("The number of blocks must be positive.");
+
+        int n = seqs.length;
+        double[] lengthSum = new double[n + 1];    // lengthSum[j]: sum of the lengths of the sequences before j
+        double[] rowWork = new double[n + 1];      // rowWork[i]: work of the rows before i
+        for(int i = 0; i < n; i++){
+
+            lengthSum[i + 1] = lengthSum[i] + seqs[i].length;
+            rowWork[i + 1] = rowWork[i] + seqs[i].length * lengthSum[i];
+        }
+
+        long pairs = DistanceMatrix.index(n, 0);
+        long[] starts = new long[blocks + 1];
+        starts[blocks] = pairs;
+        int i = 1;
+        for(int k = 1; k < blocks; k++){
+
+            double target = rowWork[n] * k / blocks;
+            while(i < n && rowWork[i + 1] <= target)   // the row in which the target is reached
+                i++;
+            long boundary;
+            if(i >= n || seqs[i].length == 0)
+                boundary = i >= n ? pairs : DistanceMatrix.index(i, 0);
+            else{
+
+                double inRow = (target - rowWork[i]) / seqs[i].length;
+                int j = Arrays.binarySearch(lengthSum, 0, i + 1, inRow);  // pairs (i, 0 .. j - 1) reach the target
+                j = Math.min(j < 0 ? -j - 1 : j, i);
+                boundary = DistanceMatrix.index(i, 0) + j;
+            }
+            starts[k] = Math.max(starts[k - 1], boundary);
+        }
+        return new ShardPlan(n, ScoreCache.mix(inputFingerprint * 31 + blocks), starts);
+    }
+
+    /**
+     * @param inputFingerprint fingerprint of the sequences, the weights matrix and the scoring mode, see {@link phylogenetictree.ShardPlan#fingerprint(long[], long, String)}
+     * @return true if the plan was made for this input
+     */
+
+    boolean matches(long inputFingerprint){
+
+        return fingerprint == ScoreCache.mix(inputFingerprint * 31 + blocks());
+    }
+
+    /**
+     * @param fingerprints fingerprints of the sequences in slot order
+     * @param matrixFingerprint fingerprint of the weights matrix
+     * @param mode how the scores are computed, see {@link phylogenetictree.HierarchicalClustering#scoringMode}
+     * @return fingerprint of the whole input
+     */
+
+    static long fingerprint(long[] fingerprints, long matrixFingerprint, String mode){
+
+        long h = ScoreCache.mix(matrixFingerprint ^ fingerprints.length);
+        h = ScoreCache.mix(h * 31 + ScoreCache.fingerprint(mode.getBytes(StandardCharsets.UTF_8)));
+        for(long f : fingerprints){
+            h = ScoreCache.mix(h * 31 + f);
+        }
+        return h;
+    }
+
+    /**
+     * @return number of blocks
+     */
+
+    public int blocks(){
+
+        return starts.length - 1;
+    }
+
+    /**
+     * @return number of the first pair of the block
+     */
+
+    public long from(int block){
+
+        return starts[block];
+    }
+
+    /**
+     * @return number after the last pair of the block
+     */
+
+    public long to(int block){
+
+        return starts[block + 1];
+    }
+
+    /**
+     * @return row i of the pair with the given number in a packed lower triangle, i. e. the biggest i with i * (i - 1) / 2 <= number
+     */
+
+    static int row(long number){
+
+        int i = (int) ((1 + Math.sqrt(1 + 8.0 * number)) / 2);
+        while(DistanceMatrix.index(i, 0) > number)
+            i--;
+        while(DistanceMatrix.index(i + 1, 0) <= number)
+            i++;
+        return i;
+    }
+
+    static Path blockFile(Path directory, int block){
+
+        return directory.resolve("block-" + block + ".bin");
+    }
+
+    /**
+     * Writes the plan to "plan.txt" in the directory.
+     * @param directory the shard directory, created if necessary
+     * @throws IOException if the plan cannot be written
+     */
+
+    public void save(Path directory) throws IOException{
+
+        Files.createDirectories(directory);
+        Path temporary = Files.createTempFile(directory, "plan", ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)){
+
+            out.write("# PhylogeneticTree shard plan: block, first pair, end of the pairs\n");
+            out.write("size " + size + "\n");
+            out.write("fingerprint " + Long.toHexString(fingerprint) + "\n");
+            out.write("blocks " + blocks() + "\n");
+            for(int k = 0; k < blocks(); k++){
+                out.write(k + " " + from(k) + " " + to(k) + "\n");
+            }
+        }
+        Files.move(temporary, directory.resolve("plan.txt"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads the plan saved in the directory.
+     * @param directory the shard directory
+     * @return the plan
+     * @throws IOException if the plan cannot be read or is damaged
+     */
+
+    public static ShardPlan load(Path directory) throws IOException{
+
+        try (BufferedReader in = Files.newBufferedReader(directory.resolve("plan.txt"), StandardCharsets.UTF_8)){
+
+            String line;
+            while((line = in.readLine()) != null && line.startsWith("#"));   // comment lines
+            try {
+                int size = Integer.parseInt(value(line, "size"));
+                long fingerprint = Long.parseUnsignedLong(value(in.readLine(), "fingerprint"), 16);
+                int blocks = Integer.parseInt(value(in.readLine(), "blocks"));
+                long[] starts = new long[blocks + 1];
+                for(int k = 0; k < blocks; k++){
+
+                    String[] fields = in.readLine().trim().split("\\s+");
+                    if(Integer.parseInt(fields[0]) != k || Long.parseLong(fields[1]) != starts[k])
+                        throw new IOException("Block " + k + " of the shard plan is damaged.");
+                    starts[k + 1] = Long.parseLong(fields[2]);
+                }
+                if(starts[blocks] != DistanceMatrix.index(size, 0))
+                    throw new IOException("The shard plan does not cover all pairs.");
+                return new ShardPlan(size, fingerprint, starts);
+            } catch (RuntimeException ex) {
+                throw new IOException("The shard plan in " + directory + " is damaged.", ex);
+            }
+        }
+    }
+
+    private static String value(String line, String key) throws IOException{
+
+        if(line == null || !line.startsWith(key + " "))
+            throw new IOException("The shard plan has no line \"" + key + "\".");
+        return line.substring(key.length() + 1).trim();
+    }
+
+    /**
+     * Opens the temporary file of a block for its scores.
+     * @param directory the shard directory
+     * @param block number of the block
+     * @return the writer, to be committed when all scores are written
+     * @throws IOException if the file cannot be created
+     */
+
+    BlockWriter openBlock(Path directory, int block) throws IOException{
+
+        return new BlockWriter(directory, block);
+    }
+
+    /**
+     * Writes the scores of a block as they are computed, in any order and from any number of threads, to a temporary file which then atomically replaces the block file.
+     */
+    class BlockWriter implements Closeable {
+
+        private final Path temporary, target;
+        private final FileChannel channel;
+        private final long first;
+        private boolean committed = false;
+
+        private BlockWriter(Path directory, int block) throws IOException{
+
+            target = blockFile(directory, block);
+            first = from(block);
+            temporary = Files.createTempFile(directory, "block-" + block + "-", ".tmp");
+            channel = FileChannel.open(temporary, StandardOpenOption.WRITE);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER).putLong(MAGIC).putLong(fingerprint).putInt(block).putLong(from(block)).putLong(to(block));
+            write(header.flip(), 0);
+        }
+
+        /**
+         * Writes the scores of consecutive pairs.
+         * @param pair number of the first pair
+         * @param scores the scores
+         * @param count number of scores to write
+         * @throws IOException if the file cannot be written
+         */
+
+        void write(long pair, double[] scores, int count) throws IOException{
+
+            ByteBuffer buffer = ByteBuffer.allocate(count * 8);
+            for(int k = 0; k < count; k++){
+                buffer.putDouble(scores[k]);
+            }
+            write(buffer.flip(), HEADER + 8 * (pair - first));
+        }
+
+        private void write(ByteBuffer buffer, long position) throws IOException{
+
+            while(buffer.hasRemaining()){
+                position += channel.write(buffer, position);
+            }
+        }
+
+        /**
+         * Makes the written block the block file. Call when the scores of all pairs are written.
+         * @throws IOException if the file cannot be written or renamed
+         */
+
+        void commit() throws IOException{
+
+            channel.force(false);
+            channel.close();
+            Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            committed = true;
+        }
+
+        /**
+         * Deletes the temporary file unless the block was committed.
+         */
+
+        @Override
+        public void close() throws IOException{
+
+            channel.close();
+            if(!committed)
+                Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * @param directory the shard directory
+     * @return numbers of the blocks whose file does not exist or has a wrong size
+     * @throws IOException if the directory cannot be read
+     */
+
+    public List<Integer> missingBlocks(Path directory) throws IOException{
+
+        List<Integer> missing = new ArrayList<>();
+        for(int k = 0; k < blocks(); k++){
+
+            Path file = blockFile(directory, k);
+            if(!Files.isRegularFile(file) || Files.size(file) != HEADER + 8 * (to(k) - from(k)))
+                missing.add(k);
+        }
+        return missing;
+    }
+
+    /**
+     * Reads all blocks into the matrix.
+     * @param directory the shard directory
+     * @param result the matrix, its size must be the one of the plan
+     * @throws IOException if a block is missing or belongs to another plan
+     */
+
+    void assemble(Path directory, DistanceMatrix result) throws IOException{
+
+        for(int k = 0; k < blocks(); k++){
+
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(blockFile(directory, k)), 1 << 16))){
+
+                if(in.readLong() != MAGIC || in.readLong() != fingerprint || in.readInt() != k || in.readLong() != from(k) || in.readLong() != to(k))
+                    throw new IOException("Block file " + blockFile(directory, k) + " does not belong to this shard plan.");
+
+                int i = row(from(k)), j = (int) (from(k) - DistanceMatrix.index(i, 0));
+                for(long p = from(k); p < to(k); p++){
+
+                    result.set(i, j, in.readDouble());
+                    if(++j == i){
+
+                        i++;
+                        j = 0;
+                    }
+                }
+            }
+        }
+    }
+}
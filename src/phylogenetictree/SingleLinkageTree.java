@@ -0,0 +1,228 @@
+package phylogenetictree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * The merge phase of the single linkage, without a merge queue: the single-linkage tree is the maximum spanning tree of the scores with its edges taken from the best to the worst.
+ *
+ * The spanning tree is grown with Prim's algorithm: every slot outside the tree keeps its best score to the tree, and every step adds the best of them and relaxes the others with the row of the added slot. The rows are cut into chunks that the threads of the pool relax and search at the same time.
+ * This takes O(n^2) time, reads every score once, never modifies the matrix and needs O(n) memory besides it, so it works for inputs far too large for {@link phylogenetictree.ClusteringEngine}.
+ * The n - 1 edges are then sorted by their scores and joined with a union-find structure, which gives the merges and their scores.
+ *
+ * Ties are broken deterministically, independent of the number of threads: among slots with equal scores to the tree the one with the smaller node number is added first, and edges with equal scores are merged in the order of their smaller (then larger) node number. Pairs of equal scores may therefore be merged in another order than by the merge queue; the tree is a single-linkage tree either way.
+ */
+class SingleLinkageTree {
+
+    /**
+     * Smallest number of slots a thread relaxes in one step.
+     */
+    private static final int CHUNK = 4096;
+
+    private final DistanceMatrix scores;
+    private final int[] node;
+
+    /**
+     * Edges of the spanning tree: slot, its neighbour towards the first slot and the score between them.
+     */
+    private final int[] edgeSlot, edgeParent;
+    private final double[] edgeScore;
+
+    private double lastScore = Double.NaN;
+
+    /**
+     * Counters told about every merge, null if instrumentation is off.
+     */
+    private Metrics metrics = null;
+
+    /**
+     * @param _scores scores between the initial nodes, only read
+     * @param _nodes node numbers of the slots (the sequence indices or virtual nodes of collapsed duplicates)
+     */
+
+    SingleLinkageTree(DistanceMatrix _scores, int[] _nodes){
+
+        scores = _scores;
+        node = _nodes.clone();
+        int edges = Math.max(node.length - 1, 0);
+        edgeSlot = new int[edges];
+        edgeParent = new int[edges];
+        edgeScore = new double[edges];
+    }
+
+    void setMetrics(Metrics _metrics){
+
+        metrics = _metrics;
+    }
+
+    /**
+     * Merges the sequences until only the given number of nodes is left.
+     * Every virtual node gets the number tree.size() + 1 and is inserted into the tree together with its children.
+     * @param tree the tree to extend (parent -> (left child, right child))
+     * @param mergeScores receives the score of the merged pair for every new virtual node
+     * @param remaining number of nodes that are left unmerged
+     * @param pool threads relaxing the rows, null to relax them on the calling thread
+     * @throws CancellationException if the thread is interrupted
+     */
+
+    void run(HashMap<Integer, Pair<Integer, Integer>> tree, HashMap<Integer, Double> mergeScores, int remaining, ForkJoinPool pool){
+
+        spanningTree(pool);
+
+        int n = node.length;
+        Integer[] order = new Integer[edgeScore.length];
+        for(int e = 0; e < order.length; e++){
+            order[e] = e;
+        }
+        Arrays.sort(order, (e, f) -> {
+
+            if(edgeScore[e] != edgeScore[f])
+                return edgeScore[e] > edgeScore[f] ? -1 : 1;
+            int e1 = Math.min(node[edgeSlot[e]], node[edgeParent[e]]), f1 = Math.min(node[edgeSlot[f]], node[edgeParent[f]]);
+            if(e1 != f1)
+                return Integer.compare(e1, f1);
+            return Integer.compare(Math.max(node[edgeSlot[e]], node[edgeParent[e]]), Math.max(node[edgeSlot[f]], node[edgeParent[f]]));
+        });
+
+        int[] root = new int[n];      // union-find over the slots
+        int[] cluster = node.clone(); // node of the cluster of every root
+        for(int s = 0; s < n; s++){
+            root[s] = s;
+        }
+        int active = n, e = 0;
+        for(; active > Math.max(remaining, 1); e++, active--){
+
+            int a = find(root, edgeSlot[order[e]]), b = find(root, edgeParent[order[e]]);
+            int newNode = tree.size() + 1;
+            tree.put(newNode, new Pair<>(Math.min(cluster[a], cluster[b]), Math.max(cluster[a], cluster[b])));
+            mergeScores.put(newNode, edgeScore[order[e]]);
+            root[b] = a;
+            cluster[a] = newNode;
+            if(metrics != null)
+                metrics.merged(active - 1);
+        }
+        lastScore = active == 2 && e < order.length ? edgeScore[order[e]] : Double.NaN;
+    }
+
+    /**
+     * @return score between the two nodes left by run(), NaN if another number of nodes is left
+     */
+
+    double lastScore(){
+
+        return lastScore;
+    }
+
+    private static int find(int[] root, int s){
+
+        while(root[s] != s){
+
+            root[s] = root[root[s]];    // path halving
+            s = root[s];
+        }
+        return s;
+    }
+
+    /**
+     * Grows the maximum spanning tree from slot 0 with Prim's algorithm and fills the edges.
+     */
+
+    private void spanningTree(ForkJoinPool pool){
+
+        int n = node.length;
+        if(n < 2)
+            return;
+        int[] outside = new int[n - 1];    // slots not in the tree yet, the first count are valid
+        double[] key = new double[n];      // best score of the slot to the tree
+        int[] parent = new int[n];         // slot of the tree with that score
+        for(int s = 1; s < n; s++){
+
+            outside[s - 1] = s;
+            key[s] = Double.NEGATIVE_INFINITY;
+            parent[s] = -1;
+        }
+        int count = n - 1;
+        int added = 0;
+        int threads = pool == null ? 1 : pool.getParallelism();
+        int[] chunkBest = new int[threads];
+        ArrayList<Future<?>> futures = new ArrayList<>();
+
+        for(int e = 0; count > 0; e++){
+
+            if(Thread.currentThread().isInterrupted())
+                throw new CancellationException("The clustering was interrupted.");
+
+            final int v = added, size = count;
+            int chunks = Math.max(1, Math.min(threads, size / CHUNK));
+            futures.clear();
+            for(int c = 1; c < chunks; c++){
+
+                final int chunk = c, from = (int) ((long) size * c / chunks), to = (int) ((long) size * (c + 1) / chunks);
+                futures.add(pool.submit(() -> {
+                    chunkBest[chunk] = relax(v, outside, from, to, key, parent);
+                }));
+            }
+            chunkBest[0] = relax(v, outside, 0, (int) ((long) size / chunks), key, parent);
+            try {
+                for(Future<?> f : futures){
+                    f.get();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                CancellationException cancel = new CancellationException("The clustering was interrupted.");
+                cancel.initCause(ex);
+                throw cancel;
+            } catch (ExecutionException ex) {
+                throw new IllegalStateException("The spanning tree failed.", ex.getCause());
+            }
+
+            int best = chunkBest[0];
+            for(int c = 1; c < chunks; c++){
+                if(better(outside[chunkBest[c]], outside[best], key))
+                    best = chunkBest[c];
+            }
+            added = outside[best];
+            edgeSlot[e] = added;
+            edgeParent[e] = parent[added];
+            edgeScore[e] = key[added];
+            outside[best] = outside[--count];
+        }
+    }
+
+    /**
+     * Relaxes the slots outside[from .. to - 1] with the row of the slot v just added to the tree.
+     * @return position of the best of them in outside
+     */
+
+    private int relax(int v, int[] outside, int from, int to, double[] key, int[] parent){
+
+        int best = from;
+        for(int k = from; k < to; k++){
+
+            int s = outside[k];
+            double score = scores.get(v, s);
+            if(score > key[s] || parent[s] < 0){
+
+                key[s] = score;
+                parent[s] = v;
+            }
+            if(better(s, outside[best], key))
+                best = k;
+        }
+        return best;
+    }
+
+    /**
+     * @return true if slot s is added to the tree before slot t
+     */
+
+    private boolean better(int s, int t, double[] key){
+
+        return key[s] > key[t] || (key[s] == key[t] && node[s] < node[t]);
+    }
+}
@@ -9,17 +9,17 @@ import java.util.HashMap;
 public class SmithWaterman {
     
     /**
-     * first string to align
+     * first string to align (encoded by the weight matrix)
      */
-    private String first;
+    private byte[] first;
     /**
-     * second string to align
+     * second string to align (encoded by the weight matrix)
      */
-    private String second;
+    private byte[] second;
     /**
-     * table of weights for each replacement
+     * compiled table of weights for each replacement
      */
-    private HashMap<Character, HashMap<Character, Double>> weightMatrix;
+    private ScoringMatrix weightMatrix;
     /**
      * table of output scores of dynamic programming
      */
@@ -33,35 +33,89 @@ public class SmithWaterman {
      */
     private int jPredecessor[][];
     /**
-     * StringBuilder that generates output alignment of the first string
+     * StringBuilder that generates output alignment of the first string (blanks are the gap symbol '*'), created by the first traceback
      */
-    private StringBuilder firstAligned = new StringBuilder();
+    private StringBuilder firstAligned = null;
     /**
-     * StringBuilder that generates output alignment of the second string
+     * StringBuilder that generates output alignment of the second string (blanks are the gap symbol '*'), created by the first traceback
      */
-    private StringBuilder secondAligned = new StringBuilder();
+    private StringBuilder secondAligned = null;
     /**
-     * StringBuilder that generates symbols at the corresponding indexes of both strings of miss ('.'), insertion or deletion (' ') and match ('|')
+     * StringBuilder that generates symbols at the corresponding indexes of both strings of miss ('.'), insertion or deletion (' ') and match ('|'), created by the first traceback
      */
-    private StringBuilder alignment  = new StringBuilder();
+    private StringBuilder alignment = null;
+    /**
+     * buffers of alignScore(), alignBanded() and alignBounded(), created by the first of them unless given to the constructor
+     */
+    private AlignmentWorkspace workspace = null;
+    
+    /**
+     * Subproblems of alignTraceback() with at most this many cells are solved directly with a table of directions instead of being split further.
+     */
+    static final long DIRECT_CELLS = 1 << 20;
+    
+    /**
+     * Directions in the table of the direct traceback.
+     */
+    private static final byte DIAGONAL = 0, LEFT = 1, UP = 2;
     
     private int iBestAlignment;
     private int jBestAlignment;
     
     /**
-     * A lookup to the HashMap weightMatrix {@link globalalignment.SmithWaterman#weightMatrix}
-     * @param a letter to compare with b
-     * @param b letter to compare with a
-     * @return weight of matching a and b
+     * optimal score of the global alignment, set by align() or alignScore()
+     */
+    private double score;
+    
+    /**
+     * number of times the band was doubled by the last alignBanded()
+     */
+    private int bandWidenings;
+    
+    /**
+     * true if the last alignBanded() reached the band limit and computed the whole table
      */
+    private boolean bandExceeded;
     
-    private Double score(char a, char b){
+    /**
+     * true if the last alignBounded() stopped before the last row
+     */
+    private boolean abandoned;
+    
+    /**
+     * Rows of alignBounded() between two checks whether the threshold can still be reached.
+     */
+    private static final int BOUND_CHECK = 8;
+    
+    /**
+     * Best weights of the letters of the current pair, set by letterMaxima(): of two letters aligned together, of a letter of the first string against a blank and of a letter of the second string against a blank.
+     */
+    private double maxMatch, maxBlankFirst, maxBlankSecond;
+    
+    /**
+     * number of dynamic programming cells filled by this object so far (by all calls)
+     */
+    private long cells;
+    
+    /**
+     * True if {@link phylogenetictree.VectorKernel} can be used: the jdk.incubator.vector module is present and it was not switched off with -Dphylogenetictree.vector=false.
+     */
+    private static final boolean VECTORIZED = vectorKernelAvailable();
+    
+    private static boolean vectorKernelAvailable(){
         
-        return weightMatrix.get(a).get(b);
+        if("false".equals(System.getProperty("phylogenetictree.vector")) || !ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent())
+            return false;
+        try {
+            return VectorKernel.lanes() > 1;
+        } catch (LinkageError ex) {
+            return false;
+        }
     }
     
     /**
      * Constructs a new instance of local alignment solver that uses Smith-Waterman algorithm.
+     * Compiles the given matrix for this instance only, prefer {@link phylogenetictree.SmithWaterman#SmithWaterman(byte[], byte[], ScoringMatrix)} when aligning many pairs.
      * @param _first first string to align
      * @param _second second string to align
      * @param _weightMatrix matrix of costs (aka scores, weights) of mismatches and matches
@@ -69,90 +123,741 @@ public class SmithWaterman {
     
     SmithWaterman(String _first, String _second, HashMap<Character, HashMap<Character, Double>> _weightMatrix){
         
-        dynProg = new double[_first.length() + 1][_second.length() + 1];
-        iPredecessor = new int[_first.length() + 1][_second.length() + 1];
-        jPredecessor = new int[_first.length() + 1][_second.length() + 1];
+        weightMatrix = new ScoringMatrix(_weightMatrix);
+        first = weightMatrix.encode(_first);
+        second = weightMatrix.encode(_second);
+    }
+    
+    /**
+     * Constructs a new instance of local alignment solver that uses Smith-Waterman algorithm on already encoded strings.
+     * @param _first first string to align, encoded by _weightMatrix
+     * @param _second second string to align, encoded by _weightMatrix
+     * @param _weightMatrix compiled matrix of costs (aka scores, weights) of mismatches and matches
+     */
+    
+    SmithWaterman(byte[] _first, byte[] _second, ScoringMatrix _weightMatrix){
+        
         first = _first;
         second = _second;
-        weightMatrix = new HashMap<Character, HashMap<Character, Double>>(_weightMatrix);
+        weightMatrix = _weightMatrix;
+    }
+    
+    /**
+     * Constructs a reusable solver: set every pair with setPair() and align it. The scores of alignScore() and alignBanded() are computed in the buffers of the workspace, so a solver aligning pair after pair allocates nothing once the buffers are large enough.
+     * @param _weightMatrix compiled matrix of costs (aka scores, weights) of mismatches and matches
+     * @param _workspace buffers of the rolling rows, used by this solver only (one per thread)
+     */
+    
+    SmithWaterman(ScoringMatrix _weightMatrix, AlignmentWorkspace _workspace){
+        
+        weightMatrix = _weightMatrix;
+        workspace = _workspace;
+    }
+    
+    /**
+     * Sets the strings to align next. The cells count goes on.
+     * @param _first first string to align, encoded by the weight matrix
+     * @param _second second string to align, encoded by the weight matrix
+     */
+    
+    void setPair(byte[] _first, byte[] _second){
+        
+        first = _first;
+        second = _second;
+        dynProg = null;
+        iPredecessor = null;
+        jPredecessor = null;
+    }
+    
+    /**
+     * @return the workspace of the rolling rows, created if none was given
+     */
+    
+    AlignmentWorkspace getWorkspace(){
+        
+        if(workspace == null)
+            workspace = new AlignmentWorkspace();
+        return workspace;
     }
     
     /**
-     * Runs the Smith-Waterman algorithm. Finds the best global alignment.
+     * Empties the aligned strings before a traceback, creating them the first time.
+     */
+    
+    private void clearAligned(){
+        
+        if(firstAligned == null){
+            
+            firstAligned = new StringBuilder();
+            secondAligned = new StringBuilder();
+            alignment = new StringBuilder();
+        }
+        firstAligned.setLength(0);
+        secondAligned.setLength(0);
+        alignment.setLength(0);
+    }
+    
+    /**
+     * Runs the Smith-Waterman algorithm. Finds the best global alignment and its aligned strings.
+     * Fills the whole dynamic programming table together with the predecessor tables, so it needs O(n*m) memory. For long strings use alignTraceback().
      */
     
     public void align(){
         
+        dynProg = new double[first.length + 1][second.length + 1];
+        iPredecessor = new int[first.length + 1][second.length + 1];
+        jPredecessor = new int[first.length + 1][second.length + 1];
+        cells += (long) first.length * second.length;
         
-        for(int i = 1; i < first.length() + 1; i++){
+        for(int i = 1; i < first.length + 1; i++){
             
-            dynProg[i][0] = dynProg[i - 1][0] + score(first.charAt(i-1), '*'); 
+            dynProg[i][0] = dynProg[i - 1][0] + weightMatrix.gap(first[i-1]); 
         }
         
-        for(int j = 1; j < second.length() + 1; j++){
+        for(int j = 1; j < second.length + 1; j++){
 
-            dynProg[0][j] = dynProg[0][j - 1] + score(second.charAt(j-1), '*'); 
+            dynProg[0][j] = dynProg[0][j - 1] + weightMatrix.gap(second[j-1]); 
         }  
-        for(int i = 1; i < first.length() + 1; i++){
+        for(int i = 1; i < first.length + 1; i++){
             
-            for(int j = 1; j < second.length() + 1; j++){
+            for(int j = 1; j < second.length + 1; j++){
                 
-                dynProg[i][j] = dynProg[i-1][j-1] + score(first.charAt(i-1), second.charAt(j-1)); // let us suppose, that it is optimal to match letters from both strings as it is
+                dynProg[i][j] = dynProg[i-1][j-1] + weightMatrix.score(first[i-1], second[j-1]); // let us suppose, that it is optimal to match letters from both strings as it is
                 iPredecessor[i][j] = i - 1;
                 jPredecessor[i][j] = j - 1;
                 
-                if(dynProg[i][j] < dynProg[i][j-1] + score(second.charAt(j-1), '*')){ // check if it is optimal to shift the first string (put a blank into it)
+                if(dynProg[i][j] < dynProg[i][j-1] + weightMatrix.gap(second[j-1])){ // check if it is optimal to shift the first string (put a blank into it)
 
-                    dynProg[i][j] = dynProg[i][j-1] + score(second.charAt(j-1), '*');
+                    dynProg[i][j] = dynProg[i][j-1] + weightMatrix.gap(second[j-1]);
                     iPredecessor[i][j] = i;
                     jPredecessor[i][j] = j - 1;
                 }
-                if(dynProg[i][j] < dynProg[i-1][j] + score(first.charAt(i-1), '*')){ // check if it is optimal to shift the second string (put a blank into it)
+                if(dynProg[i][j] < dynProg[i-1][j] + weightMatrix.gap(first[i-1])){ // check if it is optimal to shift the second string (put a blank into it)
                     
-                    dynProg[i][j] = dynProg[i-1][j] + score(first.charAt(i-1), '*');
+                    dynProg[i][j] = dynProg[i-1][j] + weightMatrix.gap(first[i-1]);
                     iPredecessor[i][j] = i - 1;
                     jPredecessor[i][j] = j;
                 }
             }
         }
+        score = dynProg[first.length][second.length];
+        
+        clearAligned();
+        for(int i = first.length, j = second.length; i > 0 || j > 0; ){    // the strings are built backwards
+            
+            int pi = i > 0 && j > 0 ? iPredecessor[i][j] : i - Math.min(i, 1);   // the first row and column are reached only by blanks
+            int pj = i > 0 && j > 0 ? jPredecessor[i][j] : j - Math.min(j, 1);
+            append(pi < i ? first[i-1] : -1, pj < j ? second[j-1] : -1);
+            i = pi;
+            j = pj;
+        }
+        firstAligned.reverse();
+        secondAligned.reverse();
+        alignment.reverse();
+    }
+    
+    /**
+     * Finds the best global alignment and its aligned strings in O(n + m) memory (Hirschberg's divide and conquer).
+     * The rows of the first string are halved; the scores of the upper half against every prefix and of the lower half against every suffix of the second string (computed with rolling rows, forwards and backwards) give the column where an optimal alignment crosses the middle row, and both halves are aligned recursively.
+     * Subproblems of at most {@link phylogenetictree.SmithWaterman#DIRECT_CELLS} cells are solved directly with a table of directions, which is faster than splitting them further. The time is about twice the one of alignScore().
+     * The score is the same as the one of align(); among alignments with equal scores another one may be chosen.
+     */
+    
+    public void alignTraceback(){
+        
+        dynProg = null;
+        iPredecessor = null;
+        jPredecessor = null;
+        clearAligned();
+        
+        score = hirschberg(0, first.length, 0, second.length);
+    }
+    
+    /**
+     * Aligns first[i0, i1) with second[j0, j1) and appends the alignment to the strings.
+     * @return score of the alignment
+     */
+    
+    private double hirschberg(int i0, int i1, int j0, int j1){
+        
+        if(i1 - i0 <= 1 || (long) (i1 - i0 + 1) * (j1 - j0 + 1) <= DIRECT_CELLS)
+            return direct(i0, i1, j0, j1);
+        
+        int middle = (i0 + i1) >>> 1;
+        double[] upper = prefixScores(i0, middle, j0, j1);
+        double[] lower = suffixScores(middle, i1, j0, j1);
+        int split = 0;
+        for(int k = 1; k < upper.length; k++){
+            
+            if(upper[k] + lower[k] > upper[split] + lower[split])
+                split = k;
+        }
+        return hirschberg(i0, middle, j0, j0 + split) + hirschberg(middle, i1, j0 + split, j1);
+    }
+    
+    /**
+     * @return scores[k] of the best alignment of first[i0, i1) with second[j0, j0 + k)
+     */
+    
+    private double[] prefixScores(int i0, int i1, int j0, int j1){
+        
+        double table[] = weightMatrix.getTable();
+        int size = weightMatrix.size(), m = j1 - j0;
+        byte gap = weightMatrix.getGap();
+        double previous[] = new double[m + 1], current[] = new double[m + 1], swap[];
+        cells += (long) (i1 - i0) * m;
+        
+        for(int k = 1; k < m + 1; k++){
+            
+            previous[k] = previous[k - 1] + table[second[j0 + k - 1] * size + gap];
+        }
+        for(int i = i0; i < i1; i++){
+            
+            int a = first[i] * size;
+            double gapA = table[a + gap];
+            current[0] = previous[0] + gapA;
+            for(int k = 1; k < m + 1; k++){
+                
+                int b = second[j0 + k - 1];
+                double best = previous[k-1] + table[a + b];
+                double shift = current[k-1] + table[b * size + gap];
+                if(best < shift)
+                    best = shift;
+                shift = previous[k] + gapA;
+                if(best < shift)
+                    best = shift;
+                current[k] = best;
+            }
+            swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return previous;
+    }
+    
+    /**
+     * @return scores[k] of the best alignment of first[i0, i1) with second[j0 + k, j1)
+     */
+    
+    private double[] suffixScores(int i0, int i1, int j0, int j1){
+        
+        double table[] = weightMatrix.getTable();
+        int size = weightMatrix.size(), m = j1 - j0;
+        byte gap = weightMatrix.getGap();
+        double previous[] = new double[m + 1], current[] = new double[m + 1], swap[];
+        cells += (long) (i1 - i0) * m;
+        
+        for(int k = m - 1; k >= 0; k--){
+            
+            previous[k] = previous[k + 1] + table[second[j0 + k] * size + gap];
+        }
+        for(int i = i1 - 1; i >= i0; i--){
+            
+            int a = first[i] * size;
+            double gapA = table[a + gap];
+            current[m] = previous[m] + gapA;
+            for(int k = m - 1; k >= 0; k--){
+                
+                int b = second[j0 + k];
+                double best = previous[k+1] + table[a + b];
+                double shift = current[k+1] + table[b * size + gap];
+                if(best < shift)
+                    best = shift;
+                shift = previous[k] + gapA;
+                if(best < shift)
+                    best = shift;
+                current[k] = best;
+            }
+            swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return previous;
+    }
+    
+    /**
+     * Aligns first[i0, i1) with second[j0, j1) with two rolling rows of scores and a table of directions, then appends the alignment to the strings.
+     * @return score of the alignment
+     */
+    
+    private double direct(int i0, int i1, int j0, int j1){
+        
+        double table[] = weightMatrix.getTable();
+        int size = weightMatrix.size(), n = i1 - i0, m = j1 - j0;
+        byte gap = weightMatrix.getGap();
+        double previous[] = new double[m + 1], current[] = new double[m + 1], swap[];
+        byte[] direction = new byte[(n + 1) * (m + 1)];
+        cells += (long) n * m;
+        
+        for(int k = 1; k < m + 1; k++){
+            
+            previous[k] = previous[k - 1] + table[second[j0 + k - 1] * size + gap];
+            direction[k] = LEFT;
+        }
+        for(int r = 1; r < n + 1; r++){
+            
+            int a = first[i0 + r - 1] * size;
+            double gapA = table[a + gap];
+            current[0] = previous[0] + gapA;
+            direction[r * (m + 1)] = UP;
+            for(int k = 1; k < m + 1; k++){
+                
+                int b = second[j0 + k - 1];
+                double best = previous[k-1] + table[a + b];   // the same order of the choices as in align()
+                byte from = DIAGONAL;
+                if(best < current[k-1] + table[b * size + gap]){
+                    
+                    best = current[k-1] + table[b * size + gap];
+                    from = LEFT;
+                }
+                if(best < previous[k] + gapA){
+                    
+                    best = previous[k] + gapA;
+                    from = UP;
+                }
+                current[k] = best;
+                direction[r * (m + 1) + k] = from;
+            }
+            swap = previous;
+            previous = current;
+            current = swap;
+        }
+        
+        int start = alignment.length();
+        for(int r = n, k = m; r > 0 || k > 0; ){   // appended backwards, then this piece is reversed
+            
+            byte from = direction[r * (m + 1) + k];
+            append(from != LEFT ? first[i0 + r - 1] : -1, from != UP ? second[j0 + k - 1] : -1);
+            if(from != LEFT)
+                r--;
+            if(from != UP)
+                k--;
+        }
+        reverse(firstAligned, start);
+        reverse(secondAligned, start);
+        reverse(alignment, start);
+        return previous[m];
+    }
+    
+    /**
+     * Appends one column of the alignment.
+     * @param a code of the letter of the first string, -1 for a blank
+     * @param b code of the letter of the second string, -1 for a blank
+     */
+    
+    private void append(int a, int b){
+        
+        firstAligned.append(a < 0 ? ScoringMatrix.GAP : weightMatrix.letter((byte) a));
+        secondAligned.append(b < 0 ? ScoringMatrix.GAP : weightMatrix.letter((byte) b));
+        alignment.append(a < 0 || b < 0 ? ' ' : a == b ? '|' : '.');
+    }
+    
+    private static void reverse(StringBuilder builder, int from){
+        
+        for(int p = from, q = builder.length() - 1; p < q; p++, q--){
+            
+            char c = builder.charAt(p);
+            builder.setCharAt(p, builder.charAt(q));
+            builder.setCharAt(q, c);
+        }
+    }
+    
+    /**
+     * Computes only the score of the best global alignment (no traceback).
+     * Keeps only two rolling rows of the dynamic programming table, laid along the shorter string, so it needs O(min(n, m)) memory.
+     * Gives exactly the same score as align().
+     * For integer weights the SIMD kernel {@link phylogenetictree.VectorKernel} is used when it is available.
+     */
+    
+    public void alignScore(){
+        
+        dynProg = null;
+        iPredecessor = null;
+        jPredecessor = null;
+        cells += (long) first.length * second.length;
+        
+        if(VECTORIZED && weightMatrix.isIntegral()){
+            
+            score = VectorKernel.score(first, second, weightMatrix, getWorkspace());
+            if(!Double.isNaN(score))
+                return;
+        }
+        
+        double table[] = weightMatrix.getTable();
+        int size = weightMatrix.size();
+        byte gap = weightMatrix.getGap();
+        double previous[], current[], swap[];
+        
+        if(second.length <= first.length){ // rows go along the second string
+            
+            previous = getWorkspace().doubles(0, second.length + 1);
+            current = getWorkspace().doubles(1, second.length + 1);
+            previous[0] = 0;
+            
+            for(int j = 1; j < second.length + 1; j++){
+                
+                previous[j] = previous[j - 1] + table[second[j-1] * size + gap];
+            }
+            for(int i = 1; i < first.length + 1; i++){
+                
+                int a = first[i-1] * size;  // row of the weights table for the current letter
+                double gapA = table[a + gap];
+                current[0] = previous[0] + gapA;
+                
+                for(int j = 1; j < second.length + 1; j++){
+                    
+                    int b = second[j-1];
+                    double best = previous[j-1] + table[a + b];   // match letters from both strings
+                    double shift = current[j-1] + table[b * size + gap];   // put a blank into the first string
+                    if(best < shift)
+                        best = shift;
+                    shift = previous[j] + gapA;  // put a blank into the second string
+                    if(best < shift)
+                        best = shift;
+                    current[j] = best;
+                }
+                swap = previous;
+                previous = current;
+                current = swap;
+            }
+            score = previous[second.length];
+        }
+        else{   // columns go along the first string
+            
+            previous = getWorkspace().doubles(0, first.length + 1);
+            current = getWorkspace().doubles(1, first.length + 1);
+            previous[0] = 0;
+            
+            for(int i = 1; i < first.length + 1; i++){
+                
+                previous[i] = previous[i - 1] + table[first[i-1] * size + gap];
+            }
+            for(int j = 1; j < second.length + 1; j++){
+                
+                int b = second[j-1];
+                double gapB = table[b * size + gap];
+                current[0] = previous[0] + gapB;
+                
+                for(int i = 1; i < first.length + 1; i++){
+                    
+                    int a = first[i-1] * size;  // row of the weights table for the current letter
+                    double best = previous[i-1] + table[a + b];   // match letters from both strings
+                    double shift = previous[i] + gapB;   // put a blank into the first string
+                    if(best < shift)
+                        best = shift;
+                    shift = current[i-1] + table[a + gap];    // put a blank into the second string
+                    if(best < shift)
+                        best = shift;
+                    current[i] = best;
+                }
+                swap = previous;
+                previous = current;
+                current = swap;
+            }
+            score = previous[first.length];
+        }
+    }
+    
+    /**
+     * Computes only the score of the best global alignment, filling only the cells at most k diagonals away from the band between the main diagonal and the diagonal of the last cell (the length difference).
+     * After every pass it checks whether any alignment leaving the band could still beat the best one inside it: such an alignment needs at least k + 1 blanks on top of the length difference, which bounds its score (see {@link phylogenetictree.SmithWaterman#outsideBound}). If the bound is not beaten, k is doubled and the band is filled again.
+     * The score is therefore always exactly the one of align(). Needs O(m) memory and O(n*k) time for the final k.
+     * @param _band initial k
+     * @param _maxBand the biggest k tried; if it is not enough, the whole table is filled by alignScore()
+     */
+    
+    public void alignBanded(int _band, int _maxBand){
+        
+        dynProg = null;
+        iPredecessor = null;
+        jPredecessor = null;
+        bandWidenings = 0;
+        bandExceeded = false;
+        
+        int band = Math.max(_band, 1);
+        while(band < Math.max(first.length, second.length)){    // a smaller band than that leaves some cells out
+            
+            double inside = bandedScore(band);
+            if(inside >= outsideBound(band)){
+                
+                score = inside;
+                return;
+            }
+            if(band > _maxBand / 2){
+                
+                bandExceeded = true;
+                break;
+            }
+            band *= 2;
+            bandWidenings++;
+        }
+        alignScore();
+    }
+    
+    /**
+     * Fills the band of width k with two rolling rows. Cells outside the band are treated as unreachable.
+     * @param band k
+     * @return the best score of an alignment that stays inside the band
+     */
+    
+    private double bandedScore(int band){
+        
+        double table[] = weightMatrix.getTable();
+        int size = weightMatrix.size();
+        byte gap = weightMatrix.getGap();
+        int n = first.length, m = second.length;
+        int low = Math.min(0, m - n) - band, high = Math.max(0, m - n) + band;  // the band holds cells with low <= j - i <= high
+        
+        double previous[] = getWorkspace().doubles(0, m + 2), current[] = getWorkspace().doubles(1, m + 2), swap[];  // the cell after the band end is set to -infinity
+        previous[0] = 0;
+        
+        for(int j = 1; j < Math.min(m, high) + 1; j++){
+            
+            previous[j] = previous[j - 1] + table[second[j-1] * size + gap];
+        }
+        previous[Math.min(m, high) + 1] = Double.NEGATIVE_INFINITY;
+        
+        for(int i = 1; i < n + 1; i++){
+            
+            int a = first[i-1] * size;  // row of the weights table for the current letter
+            double gapA = table[a + gap];
+            int from = Math.max(0, i + low), to = Math.min(m, i + high);
+            cells += to - from + 1;
+            
+            if(from == 0){
+                
+                current[0] = previous[0] + gapA;
+                from = 1;
+            }
+            else
+                current[from - 1] = Double.NEGATIVE_INFINITY;
+            
+            for(int j = from; j < to + 1; j++){
+                
+                int b = second[j-1];
+                double best = previous[j-1] + table[a + b];   // match letters from both strings
+                double shift = current[j-1] + table[b * size + gap];   // put a blank into the first string
+                if(best < shift)
+                    best = shift;
+                shift = previous[j] + gapA;  // put a blank into the second string
+                if(best < shift)
+                    best = shift;
+                current[j] = best;
+            }
+            current[to + 1] = Double.NEGATIVE_INFINITY;
+            
+            swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return previous[m];
+    }
+    
+    /**
+     * Computes the score of the best global alignment only if it reaches the threshold. The rows are filled like in alignScore(), and every few rows the best score any alignment through the current row could still reach is bounded: the score of a cell plus the best completion of the rest, which aligns r remaining letters of the first string and c of the second with x <= min(r, c) matches, so it scores at most
+     * x * maxMatch + (r - x) * maxBlankFirst + (c - x) * maxBlankSecond (see {@link phylogenetictree.SmithWaterman#outsideBound} for the maxima). If no cell can reach the threshold the alignment is abandoned.
+     * The score is max(exact score, threshold) either way, so it does not depend on where the alignment was abandoned; scores above the threshold are exactly those of align(). Needs O(m) memory and, for unrelated pairs, only a part of the rows.
+     * @param threshold the least score of interest, every score below it becomes the threshold
+     */
+    
+    public void alignBounded(double threshold){
+        
+        dynProg = null;
+        iPredecessor = null;
+        jPredecessor = null;
+        abandoned = false;
+        int n = first.length, m = second.length;
+        if(n == 0 || m == 0){
+            
+            alignScore();
+            score = Math.max(score, threshold);
+            return;
+        }
+        letterMaxima();
+        
+        double table[] = weightMatrix.getTable();
+        int size = weightMatrix.size();
+        byte gap = weightMatrix.getGap();
+        double previous[] = getWorkspace().doubles(0, m + 1), current[] = getWorkspace().doubles(1, m + 1), swap[];
+        previous[0] = 0;
+        
+        for(int j = 1; j < m + 1; j++){
+            
+            previous[j] = previous[j - 1] + table[second[j-1] * size + gap];
+        }
+        for(int i = 1; i < n + 1; i++){
+            
+            int a = first[i-1] * size;  // row of the weights table for the current letter
+            double gapA = table[a + gap];
+            current[0] = previous[0] + gapA;
+            
+            for(int j = 1; j < m + 1; j++){
+                
+                int b = second[j-1];
+                double best = previous[j-1] + table[a + b];   // the same order of the choices as in alignScore()
+                double shift = current[j-1] + table[b * size + gap];
+                if(best < shift)
+                    best = shift;
+                shift = previous[j] + gapA;
+                if(best < shift)
+                    best = shift;
+                current[j] = best;
+            }
+            cells += m;
+            swap = previous;
+            previous = current;
+            current = swap;
+            
+            if(i % BOUND_CHECK == 0 && i < n && !reachable(previous, n - i, threshold)){
+                
+                abandoned = true;
+                score = threshold;
+                return;
+            }
+        }
+        score = Math.max(previous[m], threshold);
+    }
+    
+    /**
+     * @param row a full row of the table, r letters of the first string before its end
+     * @return true if an alignment through one of its cells can still reach the threshold
+     */
+    
+    private boolean reachable(double[] row, int r, double threshold){
+        
+        int m = second.length;
+        for(int j = 0; j < m + 1; j++){
+            
+            int c = m - j, x = Math.min(r, c);
+            double rest = Math.max(r * maxBlankFirst + c * maxBlankSecond, x * maxMatch + (r - x) * maxBlankFirst + (c - x) * maxBlankSecond);   // linear in the number of matches, so one of the ends
+            if(row[j] + rest >= threshold)
+                return true;
+        }
+        return false;
+    }
+    
+    /**
+     * @return true if the last alignBounded() was abandoned because the threshold could not be reached
+     */
+    
+    public boolean isAbandoned(){
+        
+        return abandoned;
+    }
+    
+    /**
+     * Upper bound of the score of any alignment that leaves the band of width k.
+     * Such an alignment has x >= k + 1 + max(0, n - m) blanks in the second string, x + m - n blanks in the first string and n - x matches, so its score is at most
+     * (n - x) * maxMatch + x * maxBlankFirst + (x + m - n) * maxBlankSecond, where the maxima go over the letters of the strings. The bound is linear in x, so its maximum is at one of the ends of the range of x.
+     * @param band k
+     * @return the bound, -infinity if no alignment leaves the band
+     */
+    
+    private double outsideBound(int band){
+        
+        int n = first.length, m = second.length;
+        long least = band + 1L + Math.max(0, n - m);    // the least x
+        if(least > n)
+            return Double.NEGATIVE_INFINITY;
+        letterMaxima();
+        
+        double atLeast = (n - least) * maxMatch + least * maxBlankFirst + (least + m - n) * maxBlankSecond;
+        double atMost = n * maxBlankFirst + m * maxBlankSecond; // x = n: no matches at all
+        return least == n ? atMost : Math.max(atLeast, atMost);
+    }
+    
+    /**
+     * Sets maxMatch, maxBlankFirst and maxBlankSecond, the maxima over the letters occurring in the strings.
+     */
+    
+    private void letterMaxima(){
+        
+        int size = weightMatrix.size();
+        boolean inFirst[] = getWorkspace().flags(0, size), inSecond[] = getWorkspace().flags(1, size);
+        for(byte a : first){
+            inFirst[a] = true;
+        }
+        for(byte b : second){
+            inSecond[b] = true;
+        }
+        maxMatch = maxBlankFirst = maxBlankSecond = Double.NEGATIVE_INFINITY;
+        for(byte a = 0; a < size; a++){
+            
+            if(inFirst[a])
+                maxBlankFirst = Math.max(maxBlankFirst, weightMatrix.gap(a));
+            if(inSecond[a])
+                maxBlankSecond = Math.max(maxBlankSecond, weightMatrix.gap(a));
+            for(byte b = 0; b < size; b++){
+                
+                if(inFirst[a] && inSecond[b])
+                    maxMatch = Math.max(maxMatch, weightMatrix.score(a, b));
+            }
+        }
+    }
+    
+    /**
+     * @return number of times the band was doubled by the last alignBanded()
+     */
+    
+    public int getBandWidenings(){
+        
+        return bandWidenings;
+    }
+    
+    /**
+     * @return true if the last alignBanded() reached the band limit and had to fill the whole table
+     */
+    
+    public boolean isBandExceeded(){
+        
+        return bandExceeded;
+    }
+    
+    /**
+     * @return number of dynamic programming cells filled by this object so far, over all calls of align(), alignScore(), alignBanded() and alignBounded()
+     */
+    
+    public long getCells(){
+        
+        return cells;
     }
     
     /**
-     * Returns the minimal cost of global alignment. Call only after align() (otherwise returns 0).
+     * Returns the minimal cost of global alignment. Call only after align(), alignScore(), alignBanded() or alignBounded() (otherwise returns 0).
      * @return optimal global alignemnt with respect to the given weight matrix
      */
     
     public Double getScore(){
         
-        return dynProg[first.length()][second.length()];
+        return score;
     }
     
     /**
-     * Returns String containing computed alignment of the first string.
-     * @return alignment of the first string
+     * Returns String containing computed alignment of the first string. Call only after align() or alignTraceback() (otherwise returns an empty String).
+     * @return alignment of the first string, blanks are '*'
      */
     
     public String getFirstAligned(){
         
-        return firstAligned.reverse().toString();
+        return firstAligned == null ? "" : firstAligned.toString();
     }
     
     /**
-     * Returns String containing computed alignment of the second string.
-     * @return alignment of the second string
+     * Returns String containing computed alignment of the second string. Call only after align() or alignTraceback() (otherwise returns an empty String).
+     * @return alignment of the second string, blanks are '*'
      */
     public String getSecondAligned(){
         
-        return secondAligned.reverse().toString();
+        return secondAligned == null ? "" : secondAligned.toString();
     }
     
     /**
-     * Returns String representing matches ('|')., mismatches ('.'). and insertions/deletions (' ').
+     * Returns String representing matches ('|')., mismatches ('.'). and insertions/deletions (' '). Call only after align() or alignTraceback() (otherwise returns an empty String).
      * @return String representing relation between two aligned strings
      */
     
     public String getAlignment(){
         
-        return alignment.reverse().toString();
+        return alignment == null ? "" : alignment.toString();
     }
 }
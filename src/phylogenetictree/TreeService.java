@@ -0,0 +1,344 @@
+package phylogenetictree;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Long-running clustering service: the weights matrix is parsed once, the alignment threads are kept in one warm pool and the JIT stays warm, so a small job costs milliseconds instead of the start of a JVM.
+ *
+ * Jobs run concurrently on a fixed number of job threads; the jobs waiting for them are kept in a bounded queue, and a job that does not fit into it is refused at once (BUSY), so the service is never overloaded. The alignments of all running jobs share one {@link java.util.concurrent.ForkJoinPool}.
+ * A running job is cancelled by interrupting its thread: the alignment workers stop after their current work unit and the merge loop after its current merge.
+ *
+ * Line protocol (requests and responses are single lines, the fields are separated by blanks):
+ *   CLUSTER id file [newick|json] - clusters the sequences of the FASTA file (a path without blanks, as seen by the service),
+ *   INLINE id [newick|json] - clusters the FASTA lines that follow, up to a line "END",
+ *   CANCEL id - cancels a queued or running job,
+ *   STATUS - numbers of running, queued and finished jobs,
+ *   QUIT - closes the connection (running jobs go on, their results are dropped).
+ * Responses: QUEUED id, BUSY id (the queue is full), DONE id milliseconds (since the job was queued) tree, ERROR id message, CANCELLED id, UNKNOWN id, STATUS running r queued q done d.
+ * The tree is written in the Newick format (default) or as JSON, on one line, see {@link phylogenetictree.TreeWriter}. Job ids are chosen by the client and must be unique among its running jobs; every connection has ids of its own, so clients never collide and can only cancel their own jobs.
+ * The FASTA lines of INLINE are read as UTF-8, like the requests, and the headers keep their characters.
+ */
+public class TreeService {
+
+    private final ScoringMatrix matrix;
+
+    /**
+     * Threads of the alignments of all jobs.
+     */
+    private final ForkJoinPool alignmentPool;
+    private final Aligners aligners;
+
+    /**
+     * Threads running the jobs and the queue of the jobs waiting for them.
+     */
+    private final ThreadPoolExecutor jobs;
+
+    /**
+     * Jobs that are queued or running, by the number of their connection and their id ("connection id").
+     */
+    private final ConcurrentHashMap<String, Job> active = new ConcurrentHashMap<>();
+
+    /**
+     * Number of the last connection served.
+     */
+    private final AtomicLong connections = new AtomicLong();
+
+    private final AtomicLong finished = new AtomicLong();
+
+    /**
+     * Configures the clustering of every job (band, collapsing of duplicates).
+     */
+    private Consumer<HierarchicalClustering> jobSetup = hc -> {};
+
+    /**
+     * @param _matrix the compiled weights matrix of all jobs
+     * @param parallelism number of alignment threads shared by the jobs
+     * @param jobThreads number of jobs running at the same time
+     * @param queueSize number of jobs that may wait for a job thread
+     */
+
+    TreeService(ScoringMatrix _matrix, int parallelism, int jobThreads, int queueSize){
+
+        matrix = _matrix;
+        alignmentPool = new ForkJoinPool(parallelism);
+        aligners = new Aligners(matrix);
+        AtomicInteger threads = new AtomicInteger();
+        jobs = new ThreadPoolExecutor(jobThreads, jobThreads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueSize), r -> {
+
+            Thread t = new Thread(r, "job-" + threads.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        jobs.prestartAllCoreThreads();
+    }
+
+    /**
+     * @param _jobSetup called with the clustering of every job before it starts
+     */
+
+    public void setJobSetup(Consumer<HierarchicalClustering> _jobSetup){
+
+        jobSetup = _jobSetup;
+    }
+
+    /**
+     * Clusters random sequences over the alphabet of the matrix a few times, so that the JIT compiles the alignment and merge loops before the first job.
+     */
+
+    public void warmUp(){
+
+        Random random = new Random(1);
+        StringBuilder letters = new StringBuilder();
+        for(byte c = 0; c < matrix.size(); c++){
+            if(c != matrix.getGap())
+                letters.append(matrix.letter(c));
+        }
+        for(int round = 0; round < 5; round++){
+
+            HashMap<Integer, String> sequences = new HashMap<>();
+            for(int i = 1; i <= 32; i++){
+
+                StringBuilder sequence = new StringBuilder();
+                for(int p = 0; p < 100 + random.nextInt(100); p++){
+                    sequence.append(letters.charAt(random.nextInt(letters.length())));
+                }
+                sequences.put(i, sequence.toString());
+            }
+            HierarchicalClustering hc = new HierarchicalClustering(sequences, matrix);
+            hc.setPool(alignmentPool, aligners);
+            hc.initalizeClustering();
+            hc.runClustering();
+        }
+    }
+
+    /**
+     * Listens on the loopback interface and serves every connection on its own thread. Does not return.
+     * @param port the port
+     * @throws IOException if the port cannot be bound
+     */
+
+    public void listen(int port) throws IOException{
+
+        try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())){
+
+            System.err.printf("service listening on %s:%d\n", server.getInetAddress().getHostAddress(), server.getLocalPort());
+            for(int connection = 1; ; connection++){
+
+                Socket socket = server.accept();
+                Thread t = new Thread(() -> {
+
+                    try (Socket s = socket){
+                        serve(new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8)), new PrintWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8)));
+                    } catch (IOException ex) {
+                        System.err.println("connection failed: " + ex.getMessage());
+                    }
+                }, "connection-" + connection);
+                t.setDaemon(true);
+                t.start();
+            }
+        }
+    }
+
+    /**
+     * Reads requests until QUIT or the end of the input and answers them. Responses of the jobs are written when the jobs finish, so they may come in any order.
+     * @param in the requests
+     * @param out the responses, used by one writer at a time
+     * @throws IOException if the requests cannot be read
+     */
+
+    public void serve(BufferedReader in, PrintWriter out) throws IOException{
+
+        String connection = connections.incrementAndGet() + " ";  // prefix of the keys of its jobs in active
+        String line;
+        while((line = in.readLine()) != null){
+
+            String[] fields = line.trim().split("\\s+");
+            switch(fields[0].toUpperCase(Locale.ROOT)){
+                case "":
+                    break;
+                case "CLUSTER":
+                    if(fields.length < 3 || fields.length > 4)
+                        respond(out, "ERROR " + (fields.length > 1 ? fields[1] : "-") + " usage: CLUSTER id file [newick|json]");
+                    else{
+
+                        String file = fields[2];
+                        submit(connection, fields[1], fields.length > 3 ? fields[3] : "newick", () -> FastaReader.read(file, false), out);
+                    }
+                    break;
+                case "INLINE":
+                    StringBuilder fasta = new StringBuilder();
+                    String sequenceLine;
+                    while((sequenceLine = in.readLine()) != null && !sequenceLine.trim().equals("END")){
+                        fasta.append(sequenceLine).append('\n');
+                    }
+                    if(fields.length < 2 || fields.length > 3)
+                        respond(out, "ERROR " + (fields.length > 1 ? fields[1] : "-") + " usage: INLINE id [newick|json]");
+                    else{
+
+                        byte[] bytes = fasta.toString().getBytes(StandardCharsets.UTF_8);  // the encoding of the request, which the headers are decoded with again
+                        submit(connection, fields[1], fields.length > 2 ? fields[2] : "newick", () -> FastaReader.read(new ByteArrayInputStream(bytes)), out);
+                    }
+                    break;
+                case "CANCEL":
+                    if(fields.length != 2)
+                        respond(out, "ERROR - usage: CANCEL id");
+                    else{
+
+                        Job job = active.remove(connection + fields[1]);
+                        respond(out, (job != null && job.cancel(true) ? "CANCELLED " : "UNKNOWN ") + fields[1]);
+                    }
+                    break;
+                case "STATUS":
+                    respond(out, String.format("STATUS running %d queued %d done %d", jobs.getActiveCount(), jobs.getQueue().size(), finished.get()));
+                    break;
+                case "QUIT":
+                    return;
+                default:
+                    respond(out, "ERROR - unknown request " + fields[0]);
+            }
+        }
+    }
+
+    /**
+     * Lets the queued and running jobs finish (their responses are still written), then stops the threads.
+     * @throws InterruptedException if interrupted while waiting
+     */
+
+    public void shutdown() throws InterruptedException{
+
+        jobs.shutdown();
+        jobs.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        alignmentPool.shutdown();
+    }
+
+    /**
+     * Source of the sequences of a job, read on the job thread.
+     */
+    private interface Input {
+
+        SequenceArena read() throws IOException;
+    }
+
+    /**
+     * Queues a job, or refuses it if the queue is full.
+     * @param connection prefix of the keys of the jobs of the connection
+     */
+
+    private void submit(String connection, String id, String format, Input input, PrintWriter out){
+
+        if(!format.equals("newick") && !format.equals("json")){
+
+            respond(out, "ERROR " + id + " unknown format " + format);
+            return;
+        }
+        Job job = new Job(connection + id, id, out, () -> cluster(input.read(), format.equals("json")));
+        if(active.putIfAbsent(job.key, job) != null){
+
+            respond(out, "ERROR " + id + " a job with this id is running");
+            return;
+        }
+        synchronized(out){   // the job cannot answer before QUEUED is written
+
+            try {
+                jobs.execute(job);
+                respond(out, "QUEUED " + id);
+            } catch (RejectedExecutionException ex) {
+                active.remove(job.key, job);
+                respond(out, "BUSY " + id);
+            }
+        }
+    }
+
+    /**
+     * Clusters the sequences with the shared pool.
+     * @return the tree on one line
+     */
+
+    private String cluster(SequenceArena sequences, boolean json) throws IOException{
+
+        if(sequences.size() == 0)
+            throw new IllegalArgumentException("no sequences");
+        HierarchicalClustering hc = new HierarchicalClustering(sequences, matrix);
+        hc.setPool(alignmentPool, aligners);
+        jobSetup.accept(hc);
+        hc.initalizeClustering();
+        hc.runClustering();
+
+        StringWriter tree = new StringWriter();
+        TreeWriter writer = hc.getTreeWriter(id -> sequences.getHeader(id - 1));
+        if(json)
+            writer.writeJson(tree);
+        else
+            writer.writeNewick(tree);
+        return tree.toString().trim();
+    }
+
+    private static void respond(PrintWriter out, String line){
+
+        synchronized(out){
+
+            out.print(line + "\n");
+            out.flush();
+        }
+    }
+
+    /**
+     * A queued or running job. Its response is written when it finishes, unless it was cancelled (CANCEL has answered then).
+     */
+    private class Job extends FutureTask<String> {
+
+        private final String key, id;
+        private final PrintWriter out;
+        private final long start = System.nanoTime();
+
+        Job(String _key, String _id, PrintWriter _out, Callable<String> work){
+
+            super(work);
+            key = _key;
+            id = _id;
+            out = _out;
+        }
+
+        @Override
+        protected void done(){
+
+            active.remove(key, this);
+            if(isCancelled())
+                return;
+            finished.incrementAndGet();
+            try {
+                respond(out, String.format("DONE %s %d %s", id, (System.nanoTime() - start) / 1000000, get()));
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                respond(out, "ERROR " + id + " " + cause.getClass().getSimpleName() + (cause.getMessage() == null ? "" : ": " + cause.getMessage().replace('\n', ' ')));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
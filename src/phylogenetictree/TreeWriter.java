@@ -0,0 +1,297 @@
+package phylogenetictree;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.IntFunction;
+
+/**
+ * Writes the phylogenetic tree as the indented list of merges, as Newick or as JSON.
+ *
+ * The tree is walked with an explicit stack, so its depth is not limited by the call stack (a caterpillar tree of n leaves is n levels deep), and everything goes through one large buffer.
+ *
+ * Branch lengths are derived from the merge scores. A virtual node merged with score s gets the height max(0, (top - s) / 2), where top is the best possible score (see {@link phylogenetictree.HierarchicalClustering#getTopScore}); sequences have the height 0. The length of a branch is the height of the parent minus the height of the child, at least 0.
+ * If the clustering left two nodes, they are joined under a root whose score is the score between them.
+ */
+public class TreeWriter {
+
+    private static final int BUFFER = 1 << 16;
+
+    /**
+     * Children of every node, -1 for sequences. Indexed by the node number, the root is number 0 when it was added here.
+     */
+    private final int[] left, right;
+    private final double[] height;
+    private final int root;
+
+    /**
+     * Label of a sequence by its number, null to label sequences by their numbers only.
+     */
+    private final IntFunction<String> labels;
+
+    /**
+     * @param tree the tree (parent -> (left child, right child)), children of sequences are -1
+     * @param mergeScores score of the merged pair for every virtual node
+     * @param rootScore score between the two nodes left by the clustering, NaN if only one is left
+     * @param topScore the best possible score, where the heights start
+     * @param _labels label of a sequence by its number, null to use the numbers
+     */
+
+    TreeWriter(HashMap<Integer, Pair<Integer, Integer>> tree, HashMap<Integer, Double> mergeScores, double rootScore, double topScore, IntFunction<String> _labels){
+
+        labels = _labels;
+        int size = 0;
+        for(int node : tree.keySet()){
+            size = Math.max(size, node);
+        }
+        left = new int[size + 1];
+        right = new int[size + 1];
+        height = new double[size + 1];
+        boolean[] child = new boolean[size + 1];
+        left[0] = right[0] = -1;
+
+        for(Map.Entry<Integer, Pair<Integer, Integer>> entry : tree.entrySet()){
+
+            int node = entry.getKey();
+            left[node] = entry.getValue().getLeft();
+            right[node] = entry.getValue().getRight();
+            if(left[node] != -1){
+
+                child[left[node]] = child[right[node]] = true;
+                height[node] = Math.max(0, (topScore - mergeScores.get(node)) / 2);
+            }
+        }
+
+        int first = -1, second = -1;   // the nodes that are nobody's child
+        for(int node = size; node > 0; node--){
+
+            if(tree.containsKey(node) && !child[node]){
+
+                if(first < 0)
+                    first = node;
+                else if(second < 0)
+                    second = node;
+            }
+        }
+        if(second >= 0){
+
+            left[0] = Math.min(first, second);
+            right[0] = Math.max(first, second);
+            height[0] = Math.max(Math.max(height[first], height[second]), Double.isNaN(rootScore) ? 0 : (topScore - rootScore) / 2);
+            root = 0;
+        }
+        else
+            root = first;
+    }
+
+    /**
+     * Opens a buffered writer to the file.
+     */
+
+    static Writer open(String fileName) throws IOException{
+
+        return new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(Paths.get(fileName)), StandardCharsets.UTF_8), BUFFER);
+    }
+
+    /**
+     * Opens a buffered writer to the stream, e. g. System.out. Flush it when done, closing closes the stream.
+     */
+
+    static Writer open(OutputStream out){
+
+        return new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER);
+    }
+
+    /**
+     * Writes every virtual node below the given one as a line "node -> (left, right)", indented by its depth, children after their parent (left first).
+     * @param out where to write
+     * @param node the first node
+     * @param depth indentation of the first node
+     * @throws IOException if error occured while writing
+     */
+
+    void writeMerges(Writer out, int node, int depth) throws IOException{
+
+        int[] nodes = new int[16], depths = new int[16];
+        int top = 0;
+        nodes[top] = node;
+        depths[top++] = depth;
+
+        while(top > 0){
+
+            node = nodes[--top];
+            depth = depths[top];
+            if(left[node] == -1)
+                continue;
+            for(int i = 0; i < depth; i++){
+                out.write(' ');
+            }
+            out.write(node + " -> (" + left[node] + ", " + right[node] + ")\n");
+
+            if(top + 2 > nodes.length){
+
+                nodes = Arrays.copyOf(nodes, nodes.length * 2);
+                depths = Arrays.copyOf(depths, depths.length * 2);
+            }
+            nodes[top] = right[node];
+            depths[top++] = depth + 1;
+            nodes[top] = left[node];
+            depths[top++] = depth + 1;
+        }
+    }
+
+    /**
+     * Writes the tree in the Newick format: sequences are labelled with the first line of their description (quoted if necessary), virtual nodes with their numbers, every branch has its length.
+     * @param out where to write
+     * @throws IOException if error occured while writing
+     */
+
+    public void writeNewick(Writer out) throws IOException{
+
+        walk(out, false);
+        out.write(";\n");
+    }
+
+    /**
+     * Writes the tree as nested JSON objects with the fields id, label (sequences), score (virtual nodes), height, length (the branch to the parent) and children.
+     * @param out where to write
+     * @throws IOException if error occured while writing
+     */
+
+    public void writeJson(Writer out) throws IOException{
+
+        walk(out, true);
+        out.write("\n");
+    }
+
+    /**
+     * Writes the subtree of the root depth-first with an explicit stack. step[k] tells which part of the node at stack position k comes next: 0 the opening, 1 the second child, 2 the closing.
+     */
+
+    private void walk(Writer out, boolean json) throws IOException{
+
+        if(root < 0)
+            return;
+        int[] nodes = new int[16], parents = new int[16];
+        byte[] step = new byte[16];
+        int top = 0;
+        nodes[top] = root;
+        parents[top] = -1;
+        step[top++] = 0;
+
+        while(top > 0){
+
+            int node = nodes[top - 1], parent = parents[top - 1];
+            double length = parent < 0 ? 0 : Math.max(0, height[parent] - height[node]);
+
+            if(left[node] == -1){   // a sequence
+
+                if(json)
+                    out.write("{\"id\": " + node + ", \"label\": " + jsonString(label(node)) + ", \"height\": 0, \"length\": " + number(length) + "}");
+                else
+                    out.write(newickLabel(label(node)) + ":" + number(length));
+                top--;
+                continue;
+            }
+
+            if(step[top - 1] == 2){
+
+                if(json)
+                    out.write("]}");
+                else{
+
+                    out.write(")" + (node == 0 ? "" : Integer.toString(node)));
+                    if(parent >= 0)
+                        out.write(":" + number(length));
+                }
+                top--;
+                continue;
+            }
+
+            if(step[top - 1] == 0){
+
+                if(json){
+
+                    out.write("{\"id\": " + node + ", \"height\": " + number(height[node]));
+                    if(parent >= 0)
+                        out.write(", \"length\": " + number(length));
+                    out.write(", \"children\": [");
+                }
+                else
+                    out.write("(");
+            }
+            else
+                out.write(json ? ", " : ",");
+
+            int next = step[top - 1] == 0 ? left[node] : right[node];
+            step[top - 1]++;
+            if(top == nodes.length){
+
+                nodes = Arrays.copyOf(nodes, top * 2);
+                parents = Arrays.copyOf(parents, top * 2);
+                step = Arrays.copyOf(step, top * 2);
+            }
+            nodes[top] = next;
+            parents[top] = node;
+            step[top++] = 0;
+        }
+    }
+
+    private String label(int node){
+
+        String label = labels == null ? null : labels.apply(node);
+        if(label != null){
+
+            int end = label.indexOf('\n');
+            label = (end < 0 ? label : label.substring(0, end)).trim();
+        }
+        return label == null || label.isEmpty() ? Integer.toString(node) : label;
+    }
+
+    /**
+     * @return the shortest decimal form that reads back as the same double, e. g. 12.5 or 1.0E-7; no Formatter is involved, as this runs for every node
+     */
+
+    private static String number(double value){
+
+        return Double.toString(value);
+    }
+
+    /**
+     * @return the label, quoted if it contains blanks or characters of the Newick syntax
+     */
+
+    private static String newickLabel(String label){
+
+        for(int i = 0; i < label.length(); i++){
+
+            if(" \t()[]':;,".indexOf(label.charAt(i)) >= 0)
+                return "'" + label.replace("'", "''") + "'";
+        }
+        return label;
+    }
+
+    private static String jsonString(String value){
+
+        StringBuilder json = new StringBuilder(value.length() + 2).append('"');
+        for(int i = 0; i < value.length(); i++){
+
+            char c = value.charAt(i);
+            if(c == '"' || c == '\\')
+                json.append('\\').append(c);
+            else if(c < 0x20)
+                json.append(String.format("\\u%04x", (int) c));
+            else
+                json.append(c);
+        }
+        return json.append('"').toString();
+    }
+}
@@ -0,0 +1,197 @@
+package phylogenetictree;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD version of {@link phylogenetictree.SmithWaterman#alignScore} for integer weight matrices, using the (incubating) Vector API.
+ *
+ * The table is filled row by row. In a row every cell takes the better of its diagonal and upper neighbour, which does not depend on the other cells of the row, so it is computed a whole vector at a time from a query profile (the weights of one letter against the whole row string).
+ * The left neighbour is a running maximum: with G[j] the sum of the gap weights of the first j letters of the row string, H[j] - G[j] = max(T[j] - G[j], H[j-1] - G[j-1]), so the row is finished by a prefix maximum computed inside the vector with log(lanes) shifts.
+ *
+ * All values are integers, so the scores are exactly the ones of the scalar version. Before aligning, the biggest absolute value that can appear is bounded: if it fits into 16 bits, short lanes are used (twice as many lanes), else int lanes, and if it does not fit into int either the kernel refuses and the scalar version is used.
+ *
+ * Only {@link phylogenetictree.SmithWaterman} uses this class, and only if the jdk.incubator.vector module is present (run with --add-modules jdk.incubator.vector).
+ */
+class VectorKernel {
+
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Short> SHORTS = ShortVector.SPECIES_PREFERRED;
+
+    /**
+     * Values that may appear in short lanes are kept below this bound.
+     */
+    private static final long SHORT_LIMIT = Short.MAX_VALUE / 2;
+
+    /**
+     * Values that may appear in int lanes are kept below this bound.
+     */
+    private static final long INT_LIMIT = Integer.MAX_VALUE / 2;
+
+    /**
+     * @return number of int lanes of the preferred vector shape on this machine
+     */
+
+    static int lanes(){
+
+        return INTS.length();
+    }
+
+    /**
+     * Computes the score of the best global alignment.
+     * @param first first string to align (encoded)
+     * @param second second string to align (encoded)
+     * @param matrix compiled weights
+     * @param workspace buffers of the rows and the query profile
+     * @return the score, NaN if the weights are not integers or the values could overflow int lanes
+     */
+
+    static double score(byte[] first, byte[] second, ScoringMatrix matrix, AlignmentWorkspace workspace){
+
+        if(!matrix.isIntegral())
+            return Double.NaN;
+
+        long maxWeight = 1;
+        for(int w : matrix.getIntTable()){
+            maxWeight = Math.max(maxWeight, Math.abs((long) w));
+        }
+
+        boolean transposed = first.length < second.length;   // rows go along the shorter string
+        byte[] rows = transposed ? second : first;
+        byte[] columns = transposed ? first : second;
+        long bound = (rows.length + 2L * columns.length + 2) * maxWeight;  // no cell, prefix of gaps or their difference exceeds it
+
+        if(bound <= SHORT_LIMIT)
+            return alignShort(rows, columns, transposed, matrix, workspace);
+        if(bound <= INT_LIMIT)
+            return alignInt(rows, columns, transposed, matrix, workspace);
+        return Double.NaN;
+    }
+
+    private static double alignInt(byte[] y, byte[] x, boolean transposed, ScoringMatrix matrix, AlignmentWorkspace workspace){
+
+        int m = x.length, size = matrix.size(), gap = matrix.getGap(), lanes = INTS.length();
+        int[] table = matrix.getIntTable();
+
+        int[] gaps = workspace.ints(2, m + 1);   // gaps[j]: weight of blanks against the first j letters of x
+        gaps[0] = 0;
+        for(int j = 1; j < m + 1; j++){
+            gaps[j] = gaps[j - 1] + table[x[j-1] * size + gap];
+        }
+        boolean[] built = workspace.flags(0, size);
+        for(byte c : y){   // workspace.intProfile(c, ...)[j]: weight of matching letter c of y with x[j-1]
+
+            if(!built[c]){
+
+                built[c] = true;
+                int[] weights = workspace.intProfile(c, size, m + 1);
+                for(int j = 1; j < m + 1; j++){
+                    weights[j] = transposed ? table[x[j-1] * size + c] : table[c * size + x[j-1]];
+                }
+            }
+        }
+
+        int[] previous = workspace.ints(0, m + 1), current = workspace.ints(1, m + 1), swap;
+        System.arraycopy(gaps, 0, previous, 0, m + 1);
+        IntVector lowest = IntVector.broadcast(INTS, Integer.MIN_VALUE);
+
+        for(byte c : y){
+
+            int[] weights = workspace.intProfile(c, size, m + 1);
+            int gapY = table[c * size + gap];
+            IntVector gapYs = IntVector.broadcast(INTS, gapY);
+            current[0] = previous[0] + gapY;
+            int carry = current[0]; // running maximum of H[j] - gaps[j]
+
+            int j = 1;
+            for(; j + lanes <= m + 1; j += lanes){
+
+                IntVector diagonal = IntVector.fromArray(INTS, previous, j - 1).add(IntVector.fromArray(INTS, weights, j));
+                IntVector upper = IntVector.fromArray(INTS, previous, j).add(gapYs);
+                IntVector prefix = IntVector.fromArray(INTS, gaps, j);
+                IntVector best = diagonal.max(upper).sub(prefix);
+
+                for(int shift = 1; shift < lanes; shift <<= 1){
+                    best = best.max(lowest.slice(lanes - shift, best));   // prefix maximum inside the vector
+                }
+                best = best.max(carry);
+                best.add(prefix).intoArray(current, j);
+                carry = best.lane(lanes - 1);
+            }
+            for(; j < m + 1; j++){
+
+                int best = Math.max(previous[j-1] + weights[j], previous[j] + gapY);
+                carry = Math.max(carry, best - gaps[j]);
+                current[j] = carry + gaps[j];
+            }
+            swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return previous[m];
+    }
+
+    private static double alignShort(byte[] y, byte[] x, boolean transposed, ScoringMatrix matrix, AlignmentWorkspace workspace){
+
+        int m = x.length, size = matrix.size(), gap = matrix.getGap(), lanes = SHORTS.length();
+        int[] table = matrix.getIntTable();
+
+        short[] gaps = workspace.shorts(2, m + 1);   // gaps[j]: weight of blanks against the first j letters of x
+        gaps[0] = 0;
+        for(int j = 1; j < m + 1; j++){
+            gaps[j] = (short) (gaps[j - 1] + table[x[j-1] * size + gap]);
+        }
+        boolean[] built = workspace.flags(0, size);
+        for(byte c : y){   // workspace.shortProfile(c, ...)[j]: weight of matching letter c of y with x[j-1]
+
+            if(!built[c]){
+
+                built[c] = true;
+                short[] weights = workspace.shortProfile(c, size, m + 1);
+                for(int j = 1; j < m + 1; j++){
+                    weights[j] = (short) (transposed ? table[x[j-1] * size + c] : table[c * size + x[j-1]]);
+                }
+            }
+        }
+
+        short[] previous = workspace.shorts(0, m + 1), current = workspace.shorts(1, m + 1), swap;
+        System.arraycopy(gaps, 0, previous, 0, m + 1);
+        ShortVector lowest = ShortVector.broadcast(SHORTS, Short.MIN_VALUE);
+
+        for(byte c : y){
+
+            short[] weights = workspace.shortProfile(c, size, m + 1);
+            short gapY = (short) table[c * size + gap];
+            ShortVector gapYs = ShortVector.broadcast(SHORTS, gapY);
+            current[0] = (short) (previous[0] + gapY);
+            short carry = current[0]; // running maximum of H[j] - gaps[j]
+
+            int j = 1;
+            for(; j + lanes <= m + 1; j += lanes){
+
+                ShortVector diagonal = ShortVector.fromArray(SHORTS, previous, j - 1).add(ShortVector.fromArray(SHORTS, weights, j));
+                ShortVector upper = ShortVector.fromArray(SHORTS, previous, j).add(gapYs);
+                ShortVector prefix = ShortVector.fromArray(SHORTS, gaps, j);
+                ShortVector best = diagonal.max(upper).sub(prefix);
+
+                for(int shift = 1; shift < lanes; shift <<= 1){
+                    best = best.max(lowest.slice(lanes - shift, best));   // prefix maximum inside the vector
+                }
+                best = best.max(carry);
+                best.add(prefix).intoArray(current, j);
+                carry = best.lane(lanes - 1);
+            }
+            for(; j < m + 1; j++){
+
+                int best = Math.max(previous[j-1] + weights[j], previous[j] + gapY);
+                carry = (short) Math.max(carry, best - gaps[j]);
+                current[j] = (short) (carry + gaps[j]);
+            }
+            swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return previous[m];
+    }
+}
@@ -0,0 +1,124 @@
+package phylogenetictree;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks the default merge of {@link phylogenetictree.ClusteringEngine} against the merge loop of the original program: always merge the pair of active nodes with the biggest score, give the virtual node the score 0.5 (s(l, i) + s(r, i)) with every other node i and stop when two nodes are left.
+ * The original took equal scores in the order of its priority queue; the reference takes them in the order of the engine (smallest node, then smallest second node, the smaller node is the left child), so the trees must be the same.
+ */
+public class ClusteringEngineTest {
+
+    /**
+     * The merge loop of the original program, with all scores in a table indexed by node numbers and a search over all active pairs for every merge.
+     */
+
+    private static double reference(double[][] initial, HashMap<Integer, Pair<Integer, Integer>> tree, HashMap<Integer, Double> mergeScores){
+
+        int n = initial.length;
+        double[][] scores = new double[2 * n][2 * n];
+        List<Integer> activeNodes = new ArrayList<>();
+        for(int i = 1; i <= n; i++){
+
+            activeNodes.add(i);
+            for(int j = 1; j <= n; j++){
+                scores[i][j] = initial[i - 1][j - 1];
+            }
+        }
+
+        while(activeNodes.size() > 2){
+
+            int left = -1, right = -1;
+            for(int x = 0; x < activeNodes.size(); x++){
+                for(int y = x + 1; y < activeNodes.size(); y++){
+
+                    int l = Math.min(activeNodes.get(x), activeNodes.get(y)), r = Math.max(activeNodes.get(x), activeNodes.get(y));
+                    if(left < 0 || scores[l][r] > scores[left][right] || (scores[l][r] == scores[left][right] && (l < left || (l == left && r < right)))){
+
+                        left = l;
+                        right = r;
+                    }
+                }
+            }
+
+            int newNode = tree.size() + 1;
+            for(int i : activeNodes){
+
+                if(i != left && i != right)
+                    scores[i][newNode] = scores[newNode][i] = 0.5*(scores[left][i] + scores[right][i]);
+            }
+            mergeScores.put(newNode, scores[left][right]);
+            tree.put(newNode, new Pair<>(left, right));
+            activeNodes.add(newNode);
+            activeNodes.remove(Integer.valueOf(left));
+            activeNodes.remove(Integer.valueOf(right));
+        }
+        return activeNodes.size() == 2 ? scores[activeNodes.get(0)][activeNodes.get(1)] : Double.NaN;
+    }
+
+    /**
+     * Compares the engine with the reference on random symmetric matrices.
+     * @param levels number of distinct integer scores, 0 for random doubles (no ties)
+     */
+
+    private static void compare(long seed, int levels){
+
+        Random random = new Random(seed);
+        for(int n : new int[]{2, 3, 4, 7, 16, 50, 120}){
+
+            double[][] initial = new double[n][n];
+            ArrayDistanceMatrix scores = new ArrayDistanceMatrix(n);
+            for(int i = 1; i < n; i++){
+                for(int j = 0; j < i; j++){
+
+                    double score = levels == 0 ? random.nextDouble() * 100 - 50 : random.nextInt(levels) - levels / 2;
+                    initial[i][j] = initial[j][i] = score;
+                    scores.set(i, j, score);
+                }
+            }
+            int[] nodes = new int[n];
+            for(int s = 0; s < n; s++){
+                nodes[s] = s + 1;
+            }
+
+            HashMap<Integer, Pair<Integer, Integer>> engineTree = new HashMap<>(), referenceTree = new HashMap<>();
+            HashMap<Integer, Double> engineScores = new HashMap<>(), referenceScores = new HashMap<>();
+            for(int s = 1; s <= n; s++){
+
+                engineTree.put(s, new Pair<>(-1, -1));  // the sequences, as in the clustering
+                referenceTree.put(s, new Pair<>(-1, -1));
+            }
+            ClusteringEngine engine = new ClusteringEngine(scores, nodes);
+            engine.run(engineTree, engineScores, 2);
+            double referenceLast = reference(initial, referenceTree, referenceScores);
+
+            String message = "seed " + seed + ", levels " + levels + ", n = " + n;
+            assertEquals(referenceTree, engineTree, message);
+            assertEquals(referenceScores, engineScores, message);
+            assertEquals(referenceLast, engine.lastScore(), 0.0, message);
+        }
+    }
+
+    @Test
+    public void distinctScoresMatchReference(){
+
+        for(long seed = 1; seed <= 5; seed++){
+            compare(seed, 0);
+        }
+    }
+
+    @Test
+    public void tiedScoresMatchReference(){
+
+        for(long seed = 1; seed <= 5; seed++){
+
+            compare(seed, 2);   // almost every pair is tied
+            compare(seed, 5);
+        }
+    }
+}
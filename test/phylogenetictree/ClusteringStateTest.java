@@ -0,0 +1,181 @@
+package phylogenetictree;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Checks the saved states of {@link phylogenetictree.ClusteringState}: a run extended from a state gives the tree of a clean run, and states of another weights matrix or scoring mode, truncated states and other files are rejected.
+ */
+public class ClusteringStateTest {
+
+    private static ScoringMatrix weights(double match){
+
+        String letters = "ACGT" + ScoringMatrix.GAP;
+        HashMap<Character, HashMap<Character, Double>> weights = new HashMap<>();
+        for(char a : letters.toCharArray()){
+
+            weights.put(a, new HashMap<>());
+            for(char b : letters.toCharArray()){
+                weights.get(a).put(b, a == ScoringMatrix.GAP && b == ScoringMatrix.GAP ? 0.0 : a == ScoringMatrix.GAP || b == ScoringMatrix.GAP ? -4.0 : a == b ? match : -3.0);
+            }
+        }
+        return new ScoringMatrix(weights);
+    }
+
+    /**
+     * @return n sequences in a few families of related sequences, numbered from 1
+     */
+
+    private static HashMap<Integer, String> sequences(long seed, int n){
+
+        Random random = new Random(seed);
+        String[] ancestors = new String[3];
+        for(int f = 0; f < ancestors.length; f++){
+
+            char[] ancestor = new char[40 + random.nextInt(40)];
+            for(int p = 0; p < ancestor.length; p++){
+                ancestor[p] = "ACGT".charAt(random.nextInt(4));
+            }
+            ancestors[f] = new String(ancestor);
+        }
+        HashMap<Integer, String> sequences = new HashMap<>();
+        for(int i = 1; i <= n; i++){
+
+            StringBuilder sequence = new StringBuilder();
+            for(char c : ancestors[random.nextInt(ancestors.length)].toCharArray()){
+
+                double r = random.nextDouble();
+                if(r < 0.03)
+                    continue;
+                sequence.append(r < 0.15 ? "ACGT".charAt(random.nextInt(4)) : c);
+            }
+            sequences.put(i, sequence.toString());
+        }
+        return sequences;
+    }
+
+    private static HierarchicalClustering clustering(HashMap<Integer, String> sequences, ScoringMatrix matrix){
+
+        HierarchicalClustering hc = new HierarchicalClustering(sequences, matrix);
+        hc.setParallelism(2);
+        return hc;
+    }
+
+    private static String save(HashMap<Integer, String> sequences, ScoringMatrix matrix, double cap, Path directory) throws IOException{
+
+        HierarchicalClustering hc = clustering(sequences, matrix);
+        hc.setScoreCap(cap);
+        hc.initalizeClustering();
+        String file = directory.resolve("state.bin").toString();
+        hc.saveScores(file);
+        return file;
+    }
+
+    private static void assertSameTree(HierarchicalClustering expected, HierarchicalClustering actual){
+
+        assertEquals(expected.getTree(), actual.getTree());
+        assertEquals(expected.getMergeScores(), actual.getMergeScores());
+        assertEquals(expected.getRootScore(), actual.getRootScore(), 0.0);
+    }
+
+    @Test
+    public void extendedRunMatchesCleanRun(@TempDir Path directory) throws IOException{
+
+        ScoringMatrix matrix = weights(5);
+        HashMap<Integer, String> old = sequences(1, 15);
+        String file = save(old, matrix, Double.NaN, directory);
+
+        HashMap<Integer, String> extended = new HashMap<>();  // a new sequence first, the old ones renumbered
+        extended.put(1, sequences(2, 1).get(1));
+        old.forEach((i, sequence) -> extended.put(i + 1, sequence));
+
+        ClusteringState state = ClusteringState.load(file);
+        assertEquals(15, state.size());
+        HierarchicalClustering incremental = clustering(extended, matrix);
+        incremental.setPreviousState(state);
+        incremental.initalizeClustering();
+        incremental.runClustering();
+        assertEquals(15 * 14 / 2, incremental.getReusedPairs());
+
+        HierarchicalClustering clean = clustering(extended, matrix);
+        clean.initalizeClustering();
+        clean.runClustering();
+        assertSameTree(clean, incremental);
+    }
+
+    @Test
+    public void cappedRunReusesCappedState(@TempDir Path directory) throws IOException{
+
+        ScoringMatrix matrix = weights(5);
+        HashMap<Integer, String> old = sequences(3, 10);
+        String file = save(old, matrix, 50, directory);
+        HashMap<Integer, String> extended = new HashMap<>(old);
+        extended.put(11, sequences(4, 1).get(1));
+
+        HierarchicalClustering incremental = clustering(extended, matrix);
+        incremental.setScoreCap(50);
+        incremental.setPreviousState(ClusteringState.load(file));
+        incremental.initalizeClustering();
+        incremental.runClustering();
+        assertEquals(10 * 9 / 2, incremental.getReusedPairs());
+
+        HierarchicalClustering clean = clustering(extended, matrix);
+        clean.setScoreCap(50);
+        clean.initalizeClustering();
+        clean.runClustering();
+        assertSameTree(clean, incremental);
+    }
+
+    @Test
+    public void rejectsOtherMatrixOrMode(@TempDir Path directory) throws IOException{
+
+        ScoringMatrix matrix = weights(5);
+        HashMap<Integer, String> sequences = sequences(5, 8);
+        ClusteringState exact = ClusteringState.load(save(sequences, matrix, Double.NaN, directory));
+        assertEquals("exact", exact.mode);
+
+        assertThrows(IllegalArgumentException.class, () -> clustering(sequences, weights(6)).setPreviousState(exact));
+
+        HierarchicalClustering capped = clustering(sequences, matrix);
+        capped.setScoreCap(50);
+        assertThrows(IllegalArgumentException.class, () -> capped.setPreviousState(exact));
+
+        HierarchicalClustering minHash = clustering(sequences, matrix);
+        minHash.setDistanceProvider(new MinHashDistance(5, 64, Double.NaN, matrix));
+        assertThrows(IllegalArgumentException.class, () -> minHash.setPreviousState(exact));
+
+        HierarchicalClustering outOfCore = clustering(sequences, matrix);
+        outOfCore.setOutOfCore(directory.resolve("scores.tmp").toString());
+        assertThrows(IllegalArgumentException.class, () -> outOfCore.setPreviousState(exact));   // floats, not doubles
+
+        ClusteringState cappedState = ClusteringState.load(save(sequences, matrix, 50, directory));
+        assertEquals("capped at 50.0", cappedState.mode);
+        assertThrows(IllegalArgumentException.class, () -> clustering(sequences, matrix).setPreviousState(cappedState));
+        HierarchicalClustering otherCap = clustering(sequences, matrix);
+        otherCap.setScoreCap(40);
+        assertThrows(IllegalArgumentException.class, () -> otherCap.setPreviousState(cappedState));
+    }
+
+    @Test
+    public void rejectsTruncatedAndOtherFiles(@TempDir Path directory) throws IOException{
+
+        Path file = Path.of(save(sequences(6, 8), weights(5), Double.NaN, directory));
+        byte[] bytes = Files.readAllBytes(file);
+        Path truncated = directory.resolve("truncated.bin");
+        Files.write(truncated, Arrays.copyOf(bytes, bytes.length - 8));
+        assertThrows(IOException.class, () -> ClusteringState.load(truncated.toString()));
+
+        Path other = directory.resolve("other.bin");
+        Files.write(other, "not a clustering state".getBytes());
+        assertThrows(IOException.class, () -> ClusteringState.load(other.toString()));
+    }
+}
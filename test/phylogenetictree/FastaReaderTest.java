@@ -0,0 +1,146 @@
+package phylogenetictree;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPOutputStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Checks the parser of {@link phylogenetictree.FastaReader} on small inputs: line ends, blank lines, descriptions of several lines, the packing of the residues and gzip detection.
+ * Every stream is also read one byte at a time, so that the state of the parser has to survive every buffer boundary.
+ */
+public class FastaReaderTest {
+
+    /**
+     * A stream that delivers at most one byte per read.
+     */
+
+    private static class Trickle extends ByteArrayInputStream {
+
+        Trickle(byte[] bytes){
+
+            super(bytes);
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len){
+
+            return super.read(b, off, Math.min(len, 1));
+        }
+    }
+
+    /**
+     * Reads the text as a whole and one byte at a time and checks that both give the expected sequences.
+     * @param expected description and sequence of every expected sequence, one after another
+     * @return the arena read as a whole
+     */
+
+    private static SequenceArena check(String text, String... expected) throws IOException{
+
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        SequenceArena whole = FastaReader.read(new ByteArrayInputStream(bytes));
+        SequenceArena trickled = FastaReader.read(new Trickle(bytes));
+        for(SequenceArena arena : new SequenceArena[]{whole, trickled}){
+
+            assertEquals(expected.length / 2, arena.size(), text);
+            for(int i = 0; i < arena.size(); i++){
+
+                assertEquals(expected[2 * i], arena.getHeader(i), text);
+                assertEquals(expected[2 * i + 1], arena.getString(i), text);
+                assertEquals(expected[2 * i + 1].length(), arena.length(i), text);
+            }
+        }
+        assertEquals(whole.isPacked(), trickled.isPacked());
+        return whole;
+    }
+
+    @Test
+    public void acceptsBothLineEnds() throws IOException{
+
+        check(">a\r\nACGT\r\nGG\r\n>b\r\nTT\r\n", "a", "ACGTGG", "b", "TT");
+        check(">a\nACGT\nGG\n>b\nTT\n", "a", "ACGTGG", "b", "TT");
+        check(">a\r\nAC\n>b\nTT", "a", "AC", "b", "TT");    // mixed, without a final line end
+    }
+
+    @Test
+    public void skipsBlankLinesAndBlanks() throws IOException{
+
+        check("\n \n>a\n\nAC GT\n   \n\t\r\nGG\n\n>b\r\n \r\nT\tT\n\n", "a", "ACGTGG", "b", "TT");
+        check(">a\n \t \n>b\nAC\n", "a\nb", "AC");   // a line of blanks between two descriptions does not end the first one
+    }
+
+    @Test
+    public void joinsConsecutiveDescriptionLines() throws IOException{
+
+        check(">first line\r\n>second line\r\nACGT\r\n>x\r\nA\r\n", "first line\nsecond line", "ACGT", "x", "A");
+        check(">only\n>descriptions\n", "only\ndescriptions", "");
+    }
+
+    @Test
+    public void keepsResiduesBeforeTheFirstDescription() throws IOException{
+
+        check("ACGT\n>a\nGG\n", "", "ACGT", "a", "GG");
+    }
+
+    @Test
+    public void keepsDescriptionsAsRead() throws IOException{
+
+        check(">  Żółw ünï (x; y) \t\n>'second'\nAC\n", "  Żółw ünï (x; y) \t\n'second'", "AC");
+    }
+
+    @Test
+    public void packsNucleotidesUntilAnotherLetterShowsUp() throws IOException{
+
+        SequenceArena packed = check(">a\nACGTACGTA\n>b\nTTTT\n", "a", "ACGTACGTA", "b", "TTTT");
+        assertTrue(packed.isPacked());
+        assertEquals(4, packed.residueBytes());    // 13 residues in 2 bits each
+
+        SequenceArena other = check(">a\nACGTACGTA\n>b\nACGN\n>c\nGATTACA\n", "a", "ACGTACGTA", "b", "ACGN", "c", "GATTACA");
+        assertFalse(other.isPacked());
+        assertEquals(20, other.residueBytes());
+
+        SequenceArena lowercase = check(">a\nACGT\n>b\nacgt\n", "a", "ACGT", "b", "acgt");
+        assertFalse(lowercase.isPacked());
+
+        SequenceArena protein = check(">p\nMKV\n", "p", "MKV");
+        assertFalse(protein.isPacked());
+    }
+
+    @Test
+    public void readsEmptyInput() throws IOException{
+
+        check("");
+        check("\r\n  \n");
+    }
+
+    @Test
+    public void detectsGzipByItsMagicNumber(@TempDir Path directory) throws IOException{
+
+        String text = ">a\r\nACGT\r\n>b\r\nGG\r\n";
+        Path gzipped = directory.resolve("sequences.fasta");    // gzipped, but not named so
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(gzipped))){
+            out.write(text.getBytes(StandardCharsets.UTF_8));
+        }
+        Path plain = directory.resolve("sequences.fa.gz");      // named so, but plain
+        Files.write(plain, text.getBytes(StandardCharsets.UTF_8));
+
+        for(Path path : new Path[]{gzipped, plain}){
+
+            SequenceArena arena = FastaReader.read(path.toString(), false);
+            assertEquals(2, arena.size(), path.toString());
+            assertEquals("a", arena.getHeader(0));
+            assertEquals("ACGT", arena.getString(0));
+            assertEquals("b", arena.getHeader(1));
+            assertEquals("GG", arena.getString(1));
+        }
+    }
+}
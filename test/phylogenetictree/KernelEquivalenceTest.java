@@ -0,0 +1,253 @@
+package phylogenetictree;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that the alternative kernels give the scores of the scalar full-table alignment ({@link phylogenetictree.SmithWaterman#align}): the vector kernel, the score-only rolling rows, the banded, the linear-memory (Hirschberg) and the bounded alignment, and that the spanning tree gives the merges of the merge queue for the single linkage.
+ *
+ * The inputs are random but fixed by their seeds: pairs of related and of unrelated sequences of many lengths (including empty ones), with integer and with fractional weights.
+ */
+public class KernelEquivalenceTest {
+
+    private static final String DNA = "ACGT";
+    private static final String PROTEIN = "ACDEFGHIKLMNPQRSTVWY";
+
+    /**
+     * A symmetric weights matrix: matches 2 to 8, mismatches -4 to 0, blanks -6 to -3, integers or with fractions.
+     */
+
+    private static ScoringMatrix weights(long seed, String alphabet, boolean integral){
+
+        Random random = new Random(seed);
+        String letters = alphabet + ScoringMatrix.GAP;
+        HashMap<Character, HashMap<Character, Double>> weights = new HashMap<>();
+        for(int a = 0; a < letters.length(); a++){
+            weights.put(letters.charAt(a), new HashMap<>());
+        }
+        for(int a = 0; a < letters.length(); a++){
+            for(int b = 0; b <= a; b++){
+
+                double w;
+                if(letters.charAt(a) == ScoringMatrix.GAP && letters.charAt(b) == ScoringMatrix.GAP)
+                    w = 0;
+                else if(letters.charAt(a) == ScoringMatrix.GAP || letters.charAt(b) == ScoringMatrix.GAP)
+                    w = -3 - random.nextInt(4);
+                else if(a == b)
+                    w = 2 + random.nextInt(7);
+                else
+                    w = -random.nextInt(5);
+                if(!integral && w != 0)
+                    w += random.nextInt(8) / 8.0 - 0.5;
+                weights.get(letters.charAt(a)).put(letters.charAt(b), w);
+                weights.get(letters.charAt(b)).put(letters.charAt(a), w);
+            }
+        }
+        return new ScoringMatrix(weights);
+    }
+
+    private static String random(Random random, String alphabet, int length){
+
+        StringBuilder sequence = new StringBuilder(length);
+        for(int i = 0; i < length; i++){
+            sequence.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return sequence.toString();
+    }
+
+    /**
+     * @return a copy with substitutions, deletions and insertions at the given rate
+     */
+
+    private static String mutate(Random random, String ancestor, String alphabet, double rate){
+
+        StringBuilder sequence = new StringBuilder();
+        for(int i = 0; i < ancestor.length(); i++){
+
+            double r = random.nextDouble();
+            if(r < rate / 4)
+                continue;
+            sequence.append(r < rate ? alphabet.charAt(random.nextInt(alphabet.length())) : ancestor.charAt(i));
+            if(random.nextDouble() < rate / 4)
+                sequence.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return sequence.toString();
+    }
+
+    /**
+     * @return pairs of sequences: related ones of lengths up to 300 with 2 to 40 % of mutations, unrelated ones, and pairs with empty or single letter sequences
+     */
+
+    private static List<String[]> pairs(long seed, String alphabet){
+
+        Random random = new Random(seed);
+        List<String[]> pairs = new ArrayList<>();
+        for(int k = 0; k < 40; k++){
+
+            String ancestor = random(random, alphabet, 1 + random.nextInt(300));
+            double rate = 0.02 + 0.38 * random.nextDouble();
+            pairs.add(new String[]{mutate(random, ancestor, alphabet, rate), mutate(random, ancestor, alphabet, rate)});
+            pairs.add(new String[]{random(random, alphabet, random.nextInt(200)), random(random, alphabet, random.nextInt(200))});
+        }
+        pairs.add(new String[]{"", ""});
+        pairs.add(new String[]{"", random(random, alphabet, 17)});
+        pairs.add(new String[]{random(random, alphabet, 23), ""});
+        pairs.add(new String[]{random(random, alphabet, 1), random(random, alphabet, 1)});
+        return pairs;
+    }
+
+    private static double fullTable(byte[] a, byte[] b, ScoringMatrix matrix){
+
+        SmithWaterman aligner = new SmithWaterman(a, b, matrix);
+        aligner.align();
+        return aligner.getScore();
+    }
+
+    @Test
+    public void vectorKernelMatchesScalar(){
+
+        assumeTrue(ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent(), "the Vector API is not available");
+        for(String alphabet : new String[]{DNA, PROTEIN}){
+
+            ScoringMatrix matrix = weights(1, alphabet, true);
+            AlignmentWorkspace workspace = new AlignmentWorkspace();
+            for(String[] pair : pairs(2, alphabet)){
+
+                byte[] a = matrix.encode(pair[0]), b = matrix.encode(pair[1]);
+                assertEquals(fullTable(a, b, matrix), VectorKernel.score(a, b, matrix, workspace), 0.0, pair[0] + " / " + pair[1]);
+                assertEquals(fullTable(b, a, matrix), VectorKernel.score(b, a, matrix, workspace), 0.0, pair[1] + " / " + pair[0]);
+            }
+        }
+    }
+
+    @Test
+    public void scoreOnlyMatchesFullTable(){
+
+        for(boolean integral : new boolean[]{true, false}){
+
+            ScoringMatrix matrix = weights(3, PROTEIN, integral);
+            SmithWaterman reused = new SmithWaterman(matrix, new AlignmentWorkspace());
+            for(String[] pair : pairs(4, PROTEIN)){
+
+                byte[] a = matrix.encode(pair[0]), b = matrix.encode(pair[1]);
+                reused.setPair(a, b);
+                reused.alignScore();
+                assertEquals(fullTable(a, b, matrix), reused.getScore(), 0.0, pair[0] + " / " + pair[1]);
+            }
+        }
+    }
+
+    @Test
+    public void bandedMatchesFullTable(){
+
+        for(boolean integral : new boolean[]{true, false}){
+
+            ScoringMatrix matrix = weights(5, DNA, integral);
+            for(String[] pair : pairs(6, DNA)){
+
+                byte[] a = matrix.encode(pair[0]), b = matrix.encode(pair[1]);
+                double expected = fullTable(a, b, matrix);
+                for(int band : new int[]{1, 8}){
+
+                    SmithWaterman aligner = new SmithWaterman(a, b, matrix);
+                    aligner.alignBanded(band, Integer.MAX_VALUE);
+                    assertEquals(expected, aligner.getScore(), 0.0, "band " + band + ": " + pair[0] + " / " + pair[1]);
+
+                    aligner.alignBanded(band, band);  // the whole table once the band limit is reached
+                    assertEquals(expected, aligner.getScore(), 0.0, "band limit " + band + ": " + pair[0] + " / " + pair[1]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void hirschbergMatchesFullTable(){
+
+        for(boolean integral : new boolean[]{true, false}){
+
+            ScoringMatrix matrix = weights(7, PROTEIN, integral);
+            for(String[] pair : pairs(8, PROTEIN)){
+
+                byte[] a = matrix.encode(pair[0]), b = matrix.encode(pair[1]);
+                SmithWaterman aligner = new SmithWaterman(a, b, matrix);
+                aligner.alignTraceback();
+                assertEquals(fullTable(a, b, matrix), aligner.getScore(), 1e-9, pair[0] + " / " + pair[1]);
+
+                String first = aligner.getFirstAligned(), second = aligner.getSecondAligned();
+                assertEquals(pair[0], first.replace("*", ""));
+                assertEquals(pair[1], second.replace("*", ""));
+                double columns = 0;     // the alignment has the score it claims
+                for(int k = 0; k < first.length(); k++){
+                    columns += matrix.score(matrix.code(first.charAt(k)), matrix.code(second.charAt(k)));
+                }
+                assertEquals(aligner.getScore(), columns, 1e-9, pair[0] + " / " + pair[1]);
+            }
+        }
+    }
+
+    @Test
+    public void boundedMatchesCappedScore(){
+
+        for(boolean integral : new boolean[]{true, false}){
+
+            ScoringMatrix matrix = weights(9, DNA, integral);
+            for(String[] pair : pairs(10, DNA)){
+
+                byte[] a = matrix.encode(pair[0]), b = matrix.encode(pair[1]);
+                double expected = fullTable(a, b, matrix);
+                for(double threshold : new double[]{expected - 25, expected - 0.5, expected, expected + 0.5, expected + 100, -50, 0}){
+
+                    SmithWaterman aligner = new SmithWaterman(a, b, matrix);
+                    aligner.alignBounded(threshold);
+                    assertEquals(Math.max(expected, threshold), aligner.getScore(), 0.0, "threshold " + threshold + ": " + pair[0] + " / " + pair[1]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void spanningTreeMatchesMergeQueue(){
+
+        Random random = new Random(11);
+        for(int n : new int[]{2, 3, 10, 257}){
+
+            ArrayDistanceMatrix scores = new ArrayDistanceMatrix(n), copy = new ArrayDistanceMatrix(n);
+            for(int i = 1; i < n; i++){
+                for(int j = 0; j < i; j++){
+
+                    double score = random.nextDouble();    // distinct scores, so the single-linkage tree is unique
+                    scores.set(i, j, score);
+                    copy.set(i, j, score);
+                }
+            }
+            int[] nodes = new int[n], sizes = new int[n];
+            for(int s = 0; s < n; s++){
+
+                nodes[s] = s + 1;
+                sizes[s] = 1;
+            }
+
+            HashMap<Integer, Pair<Integer, Integer>> queueTree = new HashMap<>(), spanningTree = new HashMap<>();
+            HashMap<Integer, Double> queueScores = new HashMap<>(), spanningScores = new HashMap<>();
+            for(int s = 1; s <= n; s++){
+
+                queueTree.put(s, new Pair<>(-1, -1));  // the sequences, as in the clustering
+                spanningTree.put(s, new Pair<>(-1, -1));
+            }
+            ClusteringEngine engine = new ClusteringEngine(copy, nodes, sizes, Linkage.SINGLE);
+            engine.run(queueTree, queueScores, 2);
+            SingleLinkageTree spanning = new SingleLinkageTree(scores, nodes);
+            spanning.run(spanningTree, spanningScores, 2, null);
+
+            assertEquals(queueTree, spanningTree, "n = " + n);
+            assertEquals(queueScores, spanningScores, "n = " + n);
+            assertEquals(engine.lastScore(), spanning.lastScore(), 0.0, "n = " + n);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package phylogenetictree;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Checks the log of {@link phylogenetictree.ScoreCache}: entries survive reopening, the eviction keeps the most recently used entries and the records other instances appended, and a torn record at the end of the log is ignored.
+ * Two instances on the same file stand for two processes; they are used one after another, as file locks of one JVM must not overlap.
+ */
+public class ScoreCacheTest {
+
+    private static final long MATRIX = 77;
+
+    private static boolean cached(ScoreCache cache, long a){
+
+        return !Double.isNaN(cache.get(a, -a, MATRIX));
+    }
+
+    @Test
+    public void keepsEntriesAcrossRuns(@TempDir Path directory) throws IOException{
+
+        String file = directory.resolve("scores.cache").toString();
+        try (ScoreCache cache = new ScoreCache(file, 1000)){
+
+            for(long a = 1; a <= 100; a++){
+                cache.put(a, -a, MATRIX, 0.5 * a);
+            }
+            assertEquals(3.5, cache.get(7, -7, MATRIX), 0.0);
+        }
+        assertEquals(8 + 100 * 32, Files.size(Path.of(file)));
+
+        try (ScoreCache cache = new ScoreCache(file, 1000)){
+
+            for(long a = 1; a <= 100; a++){
+
+                assertEquals(0.5 * a, cache.get(a, -a, MATRIX), 0.0);
+                assertEquals(0.5 * a, cache.get(-a, a, MATRIX), 0.0);  // the order of the pair does not matter
+            }
+            assertTrue(Double.isNaN(cache.get(1, -1, MATRIX + 1)));  // another weights matrix
+            assertTrue(Double.isNaN(cache.get(101, -101, MATRIX)));
+            assertEquals(200, cache.getHits());
+            assertEquals(2, cache.getMisses());
+        }
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed(@TempDir Path directory) throws IOException{
+
+        String file = directory.resolve("scores.cache").toString();
+        try (ScoreCache cache = new ScoreCache(file, 16)){
+
+            for(long a = 0; a < 16; a++){
+                cache.put(a, -a, MATRIX, a);
+            }
+            for(long a = 0; a < 6; a++){
+                assertTrue(cached(cache, a));   // used again, so they are kept
+            }
+            cache.put(16, -16, MATRIX, 16);    // over the capacity: 12 entries are kept
+
+            for(long a = 0; a <= 16; a++){
+                assertEquals(a < 6 || a > 10, cached(cache, a), "entry " + a);
+            }
+        }
+        assertEquals(8 + 12 * 32, Files.size(Path.of(file)));
+        try (ScoreCache cache = new ScoreCache(file, 16)){
+
+            for(long a = 0; a <= 16; a++){
+                assertEquals(a < 6 || a > 10, cached(cache, a), "entry " + a + " after reopening");
+            }
+        }
+    }
+
+    @Test
+    public void keepsForeignAppendsOnEviction(@TempDir Path directory) throws IOException{
+
+        String file = directory.resolve("scores.cache").toString();
+        ScoreCache evicting = new ScoreCache(file, 16);
+        try (ScoreCache other = new ScoreCache(file, 1000)){
+
+            for(long a = 1000; a < 1008; a++){
+                other.put(a, -a, MATRIX, a);
+            }
+        }   // appended after the first instance has loaded the log
+
+        for(long a = 0; a < 17; a++){
+            evicting.put(a, -a, MATRIX, a);     // the 17th put evicts
+        }
+        evicting.close();
+
+        try (ScoreCache cache = new ScoreCache(file, 1000)){
+
+            for(long a = 1000; a < 1008; a++){
+                assertEquals(a, cache.get(a, -a, MATRIX), 0.0, "foreign entry " + a);
+            }
+            for(long a = 0; a < 17; a++){
+                assertEquals(a >= 13, cached(cache, a), "own entry " + a);  // 12 kept: the 8 foreign ones (loaded last) and the 4 newest own ones
+            }
+        }
+    }
+
+    @Test
+    public void ignoresTornRecord(@TempDir Path directory) throws IOException{
+
+        Path path = directory.resolve("scores.cache");
+        try (ScoreCache cache = new ScoreCache(path.toString(), 1000)){
+
+            for(long a = 1; a <= 3; a++){
+                cache.put(a, -a, MATRIX, a);
+            }
+        }
+        Files.write(path, new byte[20], StandardOpenOption.APPEND);   // a writer died in the middle of a record
+
+        try (ScoreCache cache = new ScoreCache(path.toString(), 1000)){
+
+            for(long a = 1; a <= 3; a++){
+                assertEquals(a, cache.get(a, -a, MATRIX), 0.0);
+            }
+            cache.put(4, -4, MATRIX, 4);
+        }
+        assertEquals(8 + 4 * 32, Files.size(path));     // the torn record was cut off before the append
+        try (ScoreCache cache = new ScoreCache(path.toString(), 1000)){
+
+            for(long a = 1; a <= 4; a++){
+                assertEquals(a, cache.get(a, -a, MATRIX), 0.0);
+            }
+        }
+    }
+
+    @Test
+    public void rejectsOtherFiles(@TempDir Path directory) throws IOException{
+
+        Path path = directory.resolve("other.bin");
+        Files.write(path, "not a cache".getBytes());
+        assertThrows(IOException.class, () -> new ScoreCache(path.toString(), 1000));
+    }
+}
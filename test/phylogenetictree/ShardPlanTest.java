@@ -0,0 +1,161 @@
+package phylogenetictree;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Checks the sharded all-pairs mode ({@link phylogenetictree.ShardPlan}): the assembled blocks hold the scores of the all-pairs alignment, missing and short block files are found, and plans or blocks of another input are rejected.
+ */
+public class ShardPlanTest {
+
+    private static ScoringMatrix weights(double match){
+
+        String letters = "ACGT" + ScoringMatrix.GAP;
+        HashMap<Character, HashMap<Character, Double>> weights = new HashMap<>();
+        for(char a : letters.toCharArray()){
+
+            weights.put(a, new HashMap<>());
+            for(char b : letters.toCharArray()){
+                weights.get(a).put(b, a == ScoringMatrix.GAP && b == ScoringMatrix.GAP ? 0.0 : a == ScoringMatrix.GAP || b == ScoringMatrix.GAP ? -4.0 : a == b ? match : -3.0);
+            }
+        }
+        return new ScoringMatrix(weights);
+    }
+
+    /**
+     * @return n random sequences of very different lengths (some empty), numbered from 1
+     */
+
+    private static HashMap<Integer, String> sequences(long seed, int n){
+
+        Random random = new Random(seed);
+        HashMap<Integer, String> sequences = new HashMap<>();
+        for(int i = 1; i <= n; i++){
+
+            char[] sequence = new char[random.nextInt(4) == 0 ? random.nextInt(3) : 10 + random.nextInt(150)];
+            for(int p = 0; p < sequence.length; p++){
+                sequence[p] = "ACGT".charAt(random.nextInt(4));
+            }
+            sequences.put(i, new String(sequence));
+        }
+        return sequences;
+    }
+
+    private static HierarchicalClustering clustering(HashMap<Integer, String> sequences, ScoringMatrix matrix){
+
+        HierarchicalClustering hc = new HierarchicalClustering(sequences, matrix);
+        hc.setParallelism(3);
+        return hc;
+    }
+
+    /**
+     * Plans the blocks and computes every one with its own clustering, as separate workers would.
+     */
+
+    private static ShardPlan computeAll(HashMap<Integer, String> sequences, ScoringMatrix matrix, Path directory, int blocks) throws IOException{
+
+        ShardPlan plan = clustering(sequences, matrix).planShards(directory.toString(), blocks);
+        for(int k = 0; k < blocks; k++){
+            clustering(sequences, matrix).computeShard(directory.toString(), k);
+        }
+        return plan;
+    }
+
+    @Test
+    public void assembledBlocksMatchAllPairs(@TempDir Path directory) throws IOException{
+
+        ScoringMatrix matrix = weights(5);
+        HashMap<Integer, String> sequences = sequences(1, 40);
+
+        HierarchicalClustering clean = clustering(sequences, matrix);
+        clean.initalizeClustering();
+        clean.saveScores(directory.resolve("clean.bin").toString());
+        ClusteringState expected = ClusteringState.load(directory.resolve("clean.bin").toString());
+
+        for(int blocks : new int[]{1, 7, 800}){    // 800 blocks for 780 pairs: some are empty
+
+            Path shards = directory.resolve("shards-" + blocks);
+            ShardPlan plan = computeAll(sequences, matrix, shards, blocks);
+            assertEquals(blocks, plan.blocks());
+            assertEquals(0, plan.from(0));
+            assertEquals(40 * 39 / 2, plan.to(blocks - 1));
+            for(int k = 1; k < blocks; k++){
+                assertEquals(plan.to(k - 1), plan.from(k));
+            }
+
+            HierarchicalClustering assembled = clustering(sequences, matrix);
+            assertEquals(List.of(), assembled.setShards(shards.toString()));
+            assembled.initalizeClustering();
+            assembled.saveScores(shards.resolve("assembled.bin").toString());
+            ClusteringState actual = ClusteringState.load(shards.resolve("assembled.bin").toString());
+            for(int i = 1; i < 40; i++){
+                for(int j = 0; j < i; j++){
+                    assertEquals(expected.score(i, j), actual.score(i, j), 0.0, blocks + " blocks, pair (" + i + ", " + j + ")");
+                }
+            }
+        }
+    }
+
+    @Test
+    public void findsMissingAndShortBlocks(@TempDir Path directory) throws IOException{
+
+        ScoringMatrix matrix = weights(5);
+        HashMap<Integer, String> sequences = sequences(2, 30);
+        ShardPlan plan = computeAll(sequences, matrix, directory, 6);
+        assertEquals(List.of(), plan.missingBlocks(directory));
+
+        Files.delete(ShardPlan.blockFile(directory, 1));
+        Path short4 = ShardPlan.blockFile(directory, 4);
+        byte[] bytes = Files.readAllBytes(short4);
+        Files.write(short4, Arrays.copyOf(bytes, bytes.length - 8));
+        assertEquals(List.of(1, 4), plan.missingBlocks(directory));
+        assertEquals(List.of(1, 4), clustering(sequences, matrix).setShards(directory.toString()));
+        assertThrows(IOException.class, () -> plan.assemble(directory, new ArrayDistanceMatrix(30)));
+
+        clustering(sequences, matrix).computeShard(directory.toString(), 1);     // computed again by a new worker
+        clustering(sequences, matrix).computeShard(directory.toString(), 4);
+        assertEquals(List.of(), plan.missingBlocks(directory));
+        try (var files = Files.list(directory)){
+            assertTrue(files.noneMatch(file -> file.toString().endsWith(".tmp")));
+        }
+    }
+
+    @Test
+    public void rejectsOtherInputs(@TempDir Path directory) throws IOException{
+
+        ScoringMatrix matrix = weights(5);
+        HashMap<Integer, String> sequences = sequences(3, 20);
+        Path shards = directory.resolve("shards");
+        computeAll(sequences, matrix, shards, 4);
+
+        HashMap<Integer, String> other = new HashMap<>(sequences);
+        other.put(21, "ACGT");
+        assertThrows(IllegalArgumentException.class, () -> clustering(other, matrix).computeShard(shards.toString(), 0));
+        assertThrows(IllegalArgumentException.class, () -> clustering(other, matrix).setShards(shards.toString()));
+        assertThrows(IllegalArgumentException.class, () -> clustering(sequences, weights(6)).setShards(shards.toString()));
+        HierarchicalClustering minHash = clustering(sequences, matrix);
+        minHash.setDistanceProvider(new MinHashDistance(5, 64, Double.NaN, matrix));
+        assertThrows(IllegalArgumentException.class, () -> minHash.computeShard(shards.toString(), 0));
+        assertThrows(IllegalArgumentException.class, () -> clustering(sequences, matrix).computeShard(shards.toString(), 4));
+
+        Path foreign = directory.resolve("foreign");   // the same blocks of another matrix
+        computeAll(sequences, weights(6), foreign, 4);
+        Files.copy(ShardPlan.blockFile(foreign, 2), ShardPlan.blockFile(shards, 2), StandardCopyOption.REPLACE_EXISTING);
+        ShardPlan plan = ShardPlan.load(shards);
+        assertEquals(List.of(), plan.missingBlocks(shards));     // the size is right, only the header tells
+        IOException ex = assertThrows(IOException.class, () -> plan.assemble(shards, new ArrayDistanceMatrix(20)));
+        assertTrue(ex.getMessage().contains("does not belong"), ex.getMessage());
+    }
+}
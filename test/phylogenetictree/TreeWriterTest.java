@@ -0,0 +1,90 @@
+package phylogenetictree;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks the Newick and JSON output of {@link phylogenetictree.TreeWriter}: the branch lengths and labels of a small tree, and that a caterpillar tree as deep as it has leaves is written on a small call stack.
+ */
+public class TreeWriterTest {
+
+    /**
+     * A caterpillar: sequence k + 1 is merged with the cluster of all sequences before it into node n + k, with the score -k.
+     */
+
+    private static TreeWriter caterpillar(int n){
+
+        HashMap<Integer, Pair<Integer, Integer>> tree = new HashMap<>();
+        HashMap<Integer, Double> mergeScores = new HashMap<>();
+        for(int s = 1; s <= n; s++){
+            tree.put(s, new Pair<>(-1, -1));
+        }
+        int last = 1;
+        for(int k = 1; k < n; k++){
+
+            tree.put(n + k, new Pair<>(last, k + 1));
+            mergeScores.put(n + k, (double) -k);
+            last = n + k;
+        }
+        return new TreeWriter(tree, mergeScores, Double.NaN, 0, id -> "s" + id);
+    }
+
+    @Test
+    public void writesLengthsAndQuotedLabels() throws IOException{
+
+        HashMap<Integer, Pair<Integer, Integer>> tree = new HashMap<>();
+        HashMap<Integer, Double> mergeScores = new HashMap<>();
+        for(int s = 1; s <= 4; s++){
+            tree.put(s, new Pair<>(-1, -1));
+        }
+        tree.put(5, new Pair<>(1, 2));
+        mergeScores.put(5, 9.0);
+        tree.put(6, new Pair<>(3, 5));
+        mergeScores.put(6, 4.0);
+        String[] labels = {null, "plain", "two words", "it's (a; b)", "first line\nsecond line"};
+        TreeWriter writer = new TreeWriter(tree, mergeScores, 0.0, 10, id -> labels[id]);
+
+        StringWriter newick = new StringWriter();
+        writer.writeNewick(newick);
+        assertEquals("('first line':5.0,('it''s (a; b)':3.0,(plain:0.5,'two words':0.5)5:2.5)6:2.0);\n", newick.toString());
+
+        StringWriter json = new StringWriter();
+        writer.writeJson(json);
+        assertEquals("{\"id\": 0, \"height\": 5.0, \"children\": [{\"id\": 4, \"label\": \"first line\", \"height\": 0, \"length\": 5.0}, {\"id\": 6, \"height\": 3.0, \"length\": 2.0, \"children\": [{\"id\": 3, \"label\": \"it's (a; b)\", \"height\": 0, \"length\": 3.0}, {\"id\": 5, \"height\": 0.5, \"length\": 2.5, \"children\": [{\"id\": 1, \"label\": \"plain\", \"height\": 0, \"length\": 0.5}, {\"id\": 2, \"label\": \"two words\", \"height\": 0, \"length\": 0.5}]}]}]}\n", json.toString());
+    }
+
+    @Test
+    public void writesDeepTreeOnSmallStack() throws Exception{
+
+        int n = 100_000;
+        TreeWriter writer = caterpillar(n);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        StringWriter newick = new StringWriter(), json = new StringWriter();
+        Thread thread = new Thread(null, () -> {
+
+            try {
+                writer.writeNewick(newick);
+                writer.writeJson(json);
+            } catch (Throwable ex) {
+                failure.set(ex);
+            }
+        }, "writer", 256 << 10);    // a recursive walk would overflow this stack long before 100000 levels
+        thread.start();
+        thread.join();
+        if(failure.get() != null)
+            throw new AssertionError(failure.get());
+
+        String text = newick.toString();
+        assertEquals(n - 1, text.chars().filter(c -> c == '(').count());
+        assertEquals(n - 1, text.chars().filter(c -> c == ')').count());
+        assertTrue(text.startsWith("(".repeat(n - 1) + "s1:0.5,s2:0.5)" + (n + 1) + ":0.5,s3:1.0)"), text.substring(0, 100));
+        assertTrue(text.endsWith(",s" + n + ":" + (double) (n - 1) / 2 + ")" + (2 * n - 1) + ";\n"), text.substring(text.length() - 100));
+        assertEquals(n - 1, json.toString().split("\"children\"", -1).length - 1);
+    }
+}